@@ -0,0 +1,228 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * An autograder that records every scheduling decision of the kernel it runs
+ * to a compact binary trace, for <tt>nachos.bench.SchedulerReplay</tt> to
+ * replay against other schedulers. Select it with
+ * <tt>-- nachos.ag.TraceGrader</tt>; the trace is written to
+ * <tt>TraceGrader.file</tt> (default <tt>sched.trace</tt>) when Nachos exits.
+ *
+ * <p>
+ * The trace starts with the magic number <tt>0x4e535452</tt> and a version
+ * number, as big-endian <tt>int</tt>s, followed by one record per event. A
+ * record is an event type byte, then the thread's index (in order of first
+ * appearance) and the ticks since the previous event, both as unsigned
+ * little-endian base-128 varints. The events are:
+ *
+ * <ul>
+ * <li><tt>READY</tt>: the thread was added to the ready set, by a wakeup or a
+ * voluntary yield.
+ * <li><tt>RUN</tt>: the thread started running.
+ * <li><tt>BLOCK</tt>: the thread stopped running without being readied or
+ * finishing, so it went to sleep.
+ * <li><tt>FINISH</tt>: the thread finished.
+ * <li><tt>PREEMPT</tt>: the thread was readied by the timer interrupt handler
+ * while it was running.
+ * </ul>
+ *
+ * The idle thread is left out of the trace.
+ */
+public class TraceGrader extends AutoGrader {
+	/**
+	 * Allocate a new trace-recording autograder.
+	 */
+	public TraceGrader() {
+	}
+
+	void init() {
+		super.init();
+
+		fileName = Config.getString("TraceGrader.file", "sched.trace");
+		System.out.print(" trace");
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						write();
+					}
+				});
+			}
+		});
+	}
+
+	public void setIdleThread(KThread idleThread) {
+		super.setIdleThread(idleThread);
+		this.idleThread = idleThread;
+	}
+
+	public void readyThread(KThread thread) {
+		super.readyThread(thread);
+
+		if (thread == idleThread)
+			return;
+
+		if (thread == running) {
+			// remember where this is, in case it turns out to be a preemption
+			lastSelfReady = length;
+			lastSelfReadyTime = getTime();
+			running = null;
+		}
+
+		readied[index(thread)] = true;
+		record(READY, thread);
+	}
+
+	public void runningThread(KThread thread) {
+		super.runningThread(thread);
+
+		if (running != null && running != thread)
+			record(BLOCK, running);
+		running = null;
+
+		if (thread == idleThread)
+			return;
+
+		readied[index(thread)] = false;
+		record(RUN, thread);
+		running = thread;
+	}
+
+	public void finishingCurrentThread() {
+		super.finishingCurrentThread();
+
+		KThread thread = KThread.currentThread();
+		if (thread == idleThread)
+			return;
+
+		record(FINISH, thread);
+		if (thread == running)
+			running = null;
+	}
+
+	/**
+	 * The timer interrupt handler runs one tick before this is called. If it
+	 * readied the running thread, that was a preemption rather than a yield.
+	 */
+	public void timerInterrupt(Privilege privilege, long time) {
+		super.timerInterrupt(privilege, time);
+
+		if (lastSelfReady >= 0 && lastSelfReadyTime == time)
+			buffer[lastSelfReady] = PREEMPT;
+		lastSelfReady = -1;
+	}
+
+	/**
+	 * Return the index of a thread in the trace, giving it the next one if it
+	 * has not appeared before.
+	 */
+	private int index(KThread thread) {
+		Integer index = indices.get(thread);
+
+		if (index == null) {
+			index = Integer.valueOf(indices.size());
+			indices.put(thread, index);
+
+			if (index.intValue() == readied.length) {
+				boolean[] grown = new boolean[readied.length * 2];
+				System.arraycopy(readied, 0, grown, 0, readied.length);
+				readied = grown;
+			}
+		}
+
+		return index.intValue();
+	}
+
+	private void record(byte type, KThread thread) {
+		// a thread that stopped running after being readied did not block
+		if (type == BLOCK && readied[index(thread)])
+			return;
+
+		long time = getTime();
+
+		ensureCapacity(1 + 5 + 10);
+		buffer[length++] = type;
+		writeVarint(index(thread));
+		writeVarint(time - lastTime);
+
+		lastTime = time;
+	}
+
+	private void writeVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[length++] = (byte) value;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra <= buffer.length)
+			return;
+
+		byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+		System.arraycopy(buffer, 0, grown, 0, length);
+		buffer = grown;
+	}
+
+	private void write() {
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					fileName));
+
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.write(buffer, 0, length);
+			out.close();
+
+			System.out.println("Scheduler trace: " + indices.size()
+					+ " threads, " + (length + 8) + " bytes written to "
+					+ fileName);
+		}
+		catch (IOException e) {
+			System.out.println("Scheduler trace: could not write " + fileName
+					+ ": " + e);
+		}
+	}
+
+	/** The first bytes of every trace, "NSTR". */
+	public static final int magic = 0x4e535452;
+
+	/** The version of the trace format. */
+	public static final int version = 1;
+
+	public static final byte READY = 0, RUN = 1, BLOCK = 2, FINISH = 3,
+			PREEMPT = 4;
+
+	private String fileName;
+
+	private KThread idleThread = null;
+
+	/** The thread running, if it is not the idle thread. */
+	private KThread running = null;
+
+	private HashMap<KThread, Integer> indices = new HashMap<KThread, Integer>();
+
+	/** Whether each thread has been readied since it last ran. */
+	private boolean[] readied = new boolean[64];
+
+	private byte[] buffer = new byte[4096];
+
+	private int length = 0;
+
+	private long lastTime = 0;
+
+	/** Where the last READY of the running thread is, or -1. */
+	private int lastSelfReady = -1;
+
+	private long lastSelfReadyTime;
+}
@@ -0,0 +1,471 @@
+package nachos.bench;
+
+import nachos.ag.TraceGrader;
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.DataInputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.StringTokenizer;
+
+/**
+ * A kernel that replays a scheduler trace recorded by
+ * <tt>nachos.ag.TraceGrader</tt> against several schedulers, to compare them
+ * on a real workload without running it again.
+ *
+ * <p>
+ * The trace is first boiled down to what each thread asked for: when it first
+ * became ready, and then a sequence of CPU bursts, each ending with the thread
+ * yielding, blocking for a recorded number of ticks, or finishing. Time the
+ * thread lost to preemption is added to the burst it interrupted, since the
+ * replay preempts by itself. Each scheduler in turn then runs that workload on
+ * a simulated CPU: the next thread to run is whatever the scheduler's ready
+ * queue returns, and every <tt>SchedulerReplay.quantum</tt> ticks the running
+ * thread goes back on the queue, as <tt>Alarm</tt> makes it do.
+ *
+ * <p>
+ * For each scheduler it prints how long, in wall-clock time, its ready queue
+ * took per operation, the distribution of the ticks threads spent ready
+ * before running, when the last thread finished, and Jain's fairness index
+ * over each thread's share of the time it was runnable that it spent running
+ * (1 is perfectly fair). The trace is read from <tt>SchedulerReplay.trace</tt>,
+ * and <tt>SchedulerReplay.schedulers</tt> lists the scheduler classes to
+ * compare, separated by commas.
+ *
+ * <p>
+ * So that the JIT compiler does not favour whichever scheduler runs last,
+ * each scheduler first replays the trace <tt>SchedulerReplay.warmups</tt>
+ * times untimed, and then <tt>SchedulerReplay.passes</tt> times, reporting
+ * the lowest time per operation of those passes and the rest of the results
+ * of the last.
+ */
+public class SchedulerReplay extends ThreadedKernel {
+	/**
+	 * Allocate a new replay kernel.
+	 */
+	public SchedulerReplay() {
+		super();
+	}
+
+	/**
+	 * Read the replay parameters and initialize the threaded kernel.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		traceName = Config.getString("SchedulerReplay.trace", "sched.trace");
+		quantum = Config.getInteger("SchedulerReplay.quantum", Stats.TimerTicks);
+		schedulers = Config.getString("SchedulerReplay.schedulers",
+				"nachos.threads.RoundRobinScheduler,"
+						+ "nachos.threads.PriorityScheduler,"
+						+ "nachos.threads.LotteryScheduler");
+		warmups = Config.getInteger("SchedulerReplay.warmups", 5);
+		passes = Config.getInteger("SchedulerReplay.passes", 5);
+
+		Lib.assertTrue(quantum > 0);
+		Lib.assertTrue(warmups >= 0 && passes > 0);
+	}
+
+	/**
+	 * There is nothing to test but the replay itself.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Load the trace and replay it against each scheduler.
+	 */
+	public void run() {
+		Workload[] workload;
+		try {
+			workload = load(traceName);
+		}
+		catch (IOException e) {
+			System.out.println("SchedulerReplay: cannot read " + traceName
+					+ ": " + e);
+			return;
+		}
+
+		long demand = 0;
+		for (int i = 0; i < workload.length; i++)
+			demand += workload[i].demand();
+
+		System.out.println();
+		System.out.println("trace " + traceName + ": " + workload.length
+				+ " threads, " + demand + " ticks of CPU, quantum " + quantum);
+		System.out.println(String.format("%-28s %9s %8s %8s %8s %8s %8s %10s %6s",
+				"scheduler", "picks", "ns/op", "mean", "p50", "p90", "p99",
+				"makespan", "jain"));
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		StringTokenizer st = new StringTokenizer(schedulers, ", \t");
+		while (st.hasMoreTokens()) {
+			String name = st.nextToken();
+
+			// warm up the JIT on this scheduler first, then keep the best time
+			double best = Double.MAX_VALUE;
+			for (int pass = 0; pass < warmups + passes; pass++) {
+				double nanos = replay(name, (Scheduler) Lib
+						.constructObject(name), workload, best,
+						pass == warmups + passes - 1);
+				if (pass >= warmups)
+					best = Math.min(best, nanos);
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Run the workload on a simulated CPU, using a ready queue from the
+	 * specified scheduler, and print the results if <i>report</i> is set,
+	 * with the time per operation of this pass or <i>best</i>, whichever is
+	 * lower.
+	 *
+	 * @return the wall-clock time per ready queue operation, in nanoseconds.
+	 */
+	private double replay(String name, Scheduler scheduler,
+			Workload[] workload, double best, boolean report) {
+		int n = workload.length;
+
+		KThread[] threads = new KThread[n];
+		HashMap<KThread, Integer> indices = new HashMap<KThread, Integer>();
+		int[] segment = new int[n];
+		long[] remaining = new long[n];
+		long[] readySince = new long[n];
+		long[] cpu = new long[n];
+		long[] waited = new long[n];
+		for (int i = 0; i < n; i++) {
+			threads[i] = new KThread().setName("replay " + i);
+			indices.put(threads[i], Integer.valueOf(i));
+			if (workload[i].bursts.length > 0)
+				remaining[i] = workload[i].bursts[0];
+		}
+
+		// pending arrivals and wakeups: { time, thread }
+		PriorityQueue<long[]> pending = new PriorityQueue<long[]>(16,
+				new java.util.Comparator<long[]>() {
+					public int compare(long[] a, long[] b) {
+						if (a[0] != b[0])
+							return (a[0] < b[0]) ? -1 : 1;
+						return (a[1] < b[1]) ? -1 : (a[1] > b[1]) ? 1 : 0;
+					}
+				});
+		for (int i = 0; i < n; i++) {
+			if (workload[i].bursts.length > 0)
+				pending.add(new long[] { workload[i].arrival, i });
+		}
+
+		ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+		long[] waits = new long[16];
+		int numWaits = 0;
+		long schedulerNanos = 0, schedulerOps = 0;
+		long time = 0, makespan = 0;
+		int running = -1;
+
+		while (true) {
+			// admit everyone due by now, in order
+			while (!pending.isEmpty() && pending.peek()[0] <= time) {
+				long[] event = pending.poll();
+				int i = (int) event[1];
+
+				readySince[i] = event[0];
+				long start = System.nanoTime();
+				readyQueue.waitForAccess(threads[i]);
+				schedulerNanos += System.nanoTime() - start;
+				schedulerOps++;
+			}
+
+			if (running < 0) {
+				long start = System.nanoTime();
+				KThread next = readyQueue.nextThread();
+				schedulerNanos += System.nanoTime() - start;
+				schedulerOps++;
+
+				if (next == null) {
+					if (pending.isEmpty())
+						break;
+					time = pending.peek()[0];
+					continue;
+				}
+
+				Integer index = indices.get(next);
+				Lib.assertTrue(index != null,
+						"scheduler returned a thread it was not given");
+				running = index.intValue();
+
+				long wait = time - readySince[running];
+				waited[running] += wait;
+				if (numWaits == waits.length)
+					waits = Arrays.copyOf(waits, waits.length * 2);
+				waits[numWaits++] = wait;
+			}
+
+			// run until the burst ends, the quantum expires, or someone arrives
+			long tick = (time / quantum + 1) * quantum;
+			long end = Math.min(time + remaining[running], tick);
+			if (!pending.isEmpty())
+				end = Math.min(end, Math.max(time, pending.peek()[0]));
+
+			cpu[running] += end - time;
+			remaining[running] -= end - time;
+			time = end;
+
+			if (remaining[running] == 0) {
+				Workload w = workload[running];
+				int s = segment[running];
+
+				if (w.ends[s] == Workload.BLOCK && w.gaps[s] >= 0) {
+					pending.add(new long[] { time + w.gaps[s], running });
+				}
+				else if (w.ends[s] == Workload.YIELD) {
+					long start = System.nanoTime();
+					requeue(readyQueue, threads, readySince, running, time);
+					schedulerNanos += System.nanoTime() - start;
+					schedulerOps++;
+				}
+
+				if (w.ends[s] == Workload.BLOCK || w.ends[s] == Workload.YIELD) {
+					if (s + 1 < w.bursts.length) {
+						segment[running] = s + 1;
+						remaining[running] = w.bursts[s + 1];
+					}
+				}
+				else {
+					makespan = time;
+				}
+
+				running = -1;
+			}
+			else if (time == tick) {
+				long start = System.nanoTime();
+				requeue(readyQueue, threads, readySince, running, time);
+				schedulerNanos += System.nanoTime() - start;
+				schedulerOps++;
+
+				running = -1;
+			}
+		}
+
+		double nanos = (double) schedulerNanos / Math.max(1, schedulerOps);
+		if (!report)
+			return nanos;
+
+		Arrays.sort(waits, 0, numWaits);
+
+		double sum = 0, sumSquares = 0;
+		int counted = 0;
+		for (int i = 0; i < n; i++) {
+			if (cpu[i] + waited[i] == 0)
+				continue;
+
+			double share = (double) cpu[i] / (cpu[i] + waited[i]);
+			sum += share;
+			sumSquares += share * share;
+			counted++;
+		}
+
+		long totalWait = 0;
+		for (int i = 0; i < numWaits; i++)
+			totalWait += waits[i];
+
+		System.out.println(String.format(
+				"%-28s %9d %8.0f %8d %8d %8d %8d %10d %6.3f",
+				name.substring(name.lastIndexOf('.') + 1), numWaits,
+				Math.min(best, nanos),
+				totalWait / Math.max(1, numWaits), percentile(waits, numWaits,
+						0.50), percentile(waits, numWaits, 0.90), percentile(
+						waits, numWaits, 0.99), makespan,
+				(sumSquares == 0) ? 1.0 : sum * sum / (counted * sumSquares)));
+		return nanos;
+	}
+
+	private static void requeue(ThreadQueue readyQueue, KThread[] threads,
+			long[] readySince, int i, long time) {
+		readySince[i] = time;
+		readyQueue.waitForAccess(threads[i]);
+	}
+
+	private static long percentile(long[] sorted, int count, double fraction) {
+		if (count == 0)
+			return 0;
+		return sorted[Math.min(count - 1, (int) (fraction * count))];
+	}
+
+	/**
+	 * Read a trace and turn it into each thread's workload.
+	 */
+	private static Workload[] load(String fileName) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(fileName)));
+
+		try {
+			if (in.readInt() != TraceGrader.magic)
+				throw new IOException("not a scheduler trace");
+			if (in.readInt() != TraceGrader.version)
+				throw new IOException("unsupported trace version");
+
+			ArrayList<Workload> threads = new ArrayList<Workload>();
+			long time = 0;
+			int running = -1;
+			long runStart = 0;
+
+			while (true) {
+				int type = in.read();
+				if (type < 0)
+					break;
+
+				int index = (int) readVarint(in);
+				time += readVarint(in);
+
+				while (index >= threads.size())
+					threads.add(new Workload());
+				Workload w = threads.get(index);
+
+				if (w.arrival < 0)
+					w.arrival = time;
+
+				switch (type) {
+				case TraceGrader.RUN:
+					running = index;
+					runStart = time;
+					break;
+
+				case TraceGrader.PREEMPT:
+					w.burst += time - runStart;
+					running = -1;
+					break;
+
+				case TraceGrader.READY:
+					if (index == running) {
+						w.burst += time - runStart;
+						w.end(Workload.YIELD);
+						running = -1;
+					}
+					else if (w.blockedAt >= 0) {
+						w.gaps[w.count - 1] = time - w.blockedAt;
+						w.blockedAt = -1;
+					}
+					break;
+
+				case TraceGrader.BLOCK:
+					if (index == running) {
+						w.burst += time - runStart;
+						running = -1;
+					}
+					w.end(Workload.BLOCK);
+					w.blockedAt = time;
+					break;
+
+				case TraceGrader.FINISH:
+					if (index == running) {
+						w.burst += time - runStart;
+						running = -1;
+					}
+					w.end(Workload.FINISH);
+					break;
+
+				default:
+					throw new IOException("bad event type " + type);
+				}
+			}
+
+			if (running >= 0) {
+				Workload w = threads.get(running);
+				w.burst += time - runStart;
+				w.end(Workload.FINISH);
+			}
+
+			Workload[] result = new Workload[threads.size()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = threads.get(i);
+				result[i].trim();
+			}
+			return result;
+		}
+		catch (EOFException e) {
+			throw new IOException("truncated trace");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+	/**
+	 * What one thread asked for: its CPU bursts, how each ended, and how long
+	 * it then stayed blocked (-1 if it never woke up).
+	 */
+	private static class Workload {
+		void end(byte how) {
+			if (count == bursts.length) {
+				bursts = Arrays.copyOf(bursts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+				gaps = Arrays.copyOf(gaps, count * 2);
+			}
+
+			bursts[count] = burst;
+			ends[count] = how;
+			gaps[count] = -1;
+			count++;
+
+			burst = 0;
+		}
+
+		void trim() {
+			bursts = Arrays.copyOf(bursts, count);
+			ends = Arrays.copyOf(ends, count);
+			gaps = Arrays.copyOf(gaps, count);
+		}
+
+		long demand() {
+			long total = 0;
+			for (int i = 0; i < bursts.length; i++)
+				total += bursts[i];
+			return total;
+		}
+
+		static final byte YIELD = 0, BLOCK = 1, FINISH = 2;
+
+		long arrival = -1;
+
+		long[] bursts = new long[4];
+
+		byte[] ends = new byte[4];
+
+		long[] gaps = new long[4];
+
+		int count = 0;
+
+		/** The CPU time of the burst in progress. */
+		long burst = 0;
+
+		/** When the thread blocked, or -1 if it is not blocked. */
+		long blockedAt = -1;
+	}
+
+	private String traceName;
+
+	private int quantum;
+
+	private String schedulers;
+
+	private int warmups, passes;
+}
@@ -0,0 +1,529 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that measures, in wall-clock time, what the thread machinery
+ * costs: context switches through <tt>KThread.yield()</tt> and
+ * <tt>TCB.contextSwitch()</tt>, thread creation and destruction, and handoffs
+ * through the synchronization primitives.
+ *
+ * <p>
+ * Each benchmark runs <tt>ThreadBench.warmup</tt> operations to let the JIT
+ * settle, then times <tt>ThreadBench.iterations</tt> operations one at a
+ * time. For each it prints the throughput and the 50th, 90th and 99th
+ * percentile and maximum latency of a single operation. Run it with
+ * <tt>make bench</tt>; edit <tt>bench/nachos.conf</tt> to compare schedulers
+ * or <tt>TCB.threads</tt> settings.
+ *
+ * <p>
+ * Simulated time keeps running while the benchmarks do, so timer interrupts
+ * still preempt threads. Their cost shows up in the tail percentiles, as it
+ * would for any kernel code.
+ */
+public class ThreadBench extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public ThreadBench() {
+		super();
+	}
+
+	/**
+	 * Read the benchmark parameters and initialize the threaded kernel.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		iterations = Config.getInteger("ThreadBench.iterations", 20000);
+		warmup = Config.getInteger("ThreadBench.warmup", 2000);
+		stormSize = Config.getInteger("ThreadBench.stormSize", 100);
+		chainLength = Config.getInteger("ThreadBench.chainLength", 8);
+		batchSize = Config.getInteger("ThreadBench.batchSize", 64);
+
+		Lib.assertTrue(iterations > 0 && warmup >= 0);
+		Lib.assertTrue(stormSize > 0 && stormSize < TCB.maxThreads);
+		Lib.assertTrue(chainLength > 1 && chainLength < TCB.maxThreads);
+		Lib.assertTrue(batchSize > 0);
+	}
+
+	/**
+	 * The benchmarks are the whole point of this kernel, so there is nothing
+	 * else to test.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run every benchmark and print its results.
+	 */
+	public void run() {
+		System.out.println();
+		System.out.println(String.format("%-26s %9s %12s %10s %10s %10s %10s",
+				"benchmark", "ops", "ops/sec", "p50 us", "p90 us", "p99 us",
+				"max us"));
+
+		measure("yield ping-pong", new Benchmark() {
+			public void run(Recorder recorder) {
+				yieldPingPong(recorder);
+			}
+		});
+		measure("fork/join", new Benchmark() {
+			public void run(Recorder recorder) {
+				forkJoin(recorder);
+			}
+		});
+		// as many threads in all as the plain fork/join benchmark
+		measure("fork/join storm (" + stormSize + ")", stormSize,
+				new Benchmark() {
+					public void run(Recorder recorder) {
+						forkJoinStorm(recorder);
+					}
+				});
+		measure("lock handoff", new Benchmark() {
+			public void run(Recorder recorder) {
+				lockHandoff(recorder);
+			}
+		});
+		measure("semaphore P/V", new Benchmark() {
+			public void run(Recorder recorder) {
+				semaphorePingPong(recorder);
+			}
+		});
+		measure("condition chain (" + chainLength + ")", new Benchmark() {
+			public void run(Recorder recorder) {
+				conditionChain(recorder, false);
+			}
+		});
+		measure("condition2 chain (" + chainLength + ")", new Benchmark() {
+			public void run(Recorder recorder) {
+				conditionChain(recorder, true);
+			}
+		});
+		measure("condition wakeAll (" + chainLength + ")", new Benchmark() {
+			public void run(Recorder recorder) {
+				conditionBroadcast(recorder, false);
+			}
+		});
+		measure("condition2 wakeAll (" + chainLength + ")", new Benchmark() {
+			public void run(Recorder recorder) {
+				conditionBroadcast(recorder, true);
+			}
+		});
+		measure("communicator word (" + batchSize + ")", new Benchmark() {
+			public void run(Recorder recorder) {
+				communicatorStream(recorder, false);
+			}
+		});
+		measure("communicator batch (" + batchSize + ")", new Benchmark() {
+			public void run(Recorder recorder) {
+				communicatorStream(recorder, true);
+			}
+		});
+	}
+
+	private void measure(String name, Benchmark benchmark) {
+		measure(name, 1, benchmark);
+	}
+
+	/**
+	 * Run a benchmark whose operations each do <tt>scale</tt> times the work
+	 * of the simple ones, for correspondingly fewer operations.
+	 */
+	private void measure(String name, int scale, Benchmark benchmark) {
+		if (warmup / scale > 0)
+			benchmark.run(new Recorder(warmup / scale));
+
+		Recorder recorder = new Recorder(Math.max(1, iterations / scale));
+		benchmark.run(recorder);
+		recorder.print(name);
+	}
+
+	/**
+	 * One operation is a round trip: this thread yields to its partner, which
+	 * yields straight back.
+	 */
+	private void yieldPingPong(final Recorder recorder) {
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < recorder.size(); i++)
+					KThread.yield();
+			}
+		}).setName("pong");
+		partner.fork();
+
+		recorder.start();
+		for (int i = 0; i < recorder.size(); i++) {
+			recorder.begin();
+			KThread.yield();
+			recorder.end();
+		}
+		recorder.stop();
+
+		partner.join();
+	}
+
+	/**
+	 * One operation forks a thread that does nothing and joins it.
+	 */
+	private void forkJoin(Recorder recorder) {
+		recorder.start();
+		for (int i = 0; i < recorder.size(); i++) {
+			recorder.begin();
+			KThread child = new KThread(emptyTarget);
+			child.fork();
+			child.join();
+			recorder.end();
+		}
+		recorder.stop();
+	}
+
+	/**
+	 * One operation forks <tt>stormSize</tt> threads that do nothing, then
+	 * joins all of them.
+	 */
+	private void forkJoinStorm(Recorder recorder) {
+		KThread[] children = new KThread[stormSize];
+
+		recorder.start();
+		for (int i = 0; i < recorder.size(); i++) {
+			recorder.begin();
+			for (int j = 0; j < stormSize; j++) {
+				children[j] = new KThread(emptyTarget);
+				children[j].fork();
+			}
+			for (int j = 0; j < stormSize; j++)
+				children[j].join();
+			recorder.end();
+		}
+		recorder.stop();
+	}
+
+	/**
+	 * Two threads each hold the lock across a yield, so every
+	 * <tt>acquire()</tt> blocks and every <tt>release()</tt> hands the lock to
+	 * the other thread. One operation is one acquire/release by this thread.
+	 */
+	private void lockHandoff(final Recorder recorder) {
+		final Lock lock = new Lock();
+
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < recorder.size(); i++) {
+					lock.acquire();
+					KThread.yield();
+					lock.release();
+				}
+			}
+		}).setName("lock partner");
+		partner.fork();
+
+		recorder.start();
+		for (int i = 0; i < recorder.size(); i++) {
+			recorder.begin();
+			lock.acquire();
+			KThread.yield();
+			lock.release();
+			recorder.end();
+		}
+		recorder.stop();
+
+		partner.join();
+	}
+
+	/**
+	 * One operation is a round trip: <tt>V()</tt> on one semaphore wakes the
+	 * partner, which answers with <tt>V()</tt> on the other.
+	 */
+	private void semaphorePingPong(final Recorder recorder) {
+		final Semaphore ping = new Semaphore(0);
+		final Semaphore pong = new Semaphore(0);
+
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < recorder.size(); i++) {
+					ping.P();
+					pong.V();
+				}
+			}
+		}).setName("semaphore partner");
+		partner.fork();
+
+		recorder.start();
+		for (int i = 0; i < recorder.size(); i++) {
+			recorder.begin();
+			ping.V();
+			pong.P();
+			recorder.end();
+		}
+		recorder.stop();
+
+		partner.join();
+	}
+
+	/**
+	 * <tt>chainLength</tt> threads, this one included, pass a token around a
+	 * ring. Each waits on its own condition variable until the token is its
+	 * own, then passes it on and wakes the next. One operation is one full
+	 * trip around the ring.
+	 */
+	private void conditionChain(final Recorder recorder, boolean useCondition2) {
+		final Lock lock = new Lock();
+		final Waiter[] waiters = new Waiter[chainLength];
+		final int[] token = new int[1];
+
+		for (int i = 0; i < chainLength; i++)
+			waiters[i] = useCondition2 ? newCondition2(lock) : newCondition(lock);
+
+		KThread[] links = new KThread[chainLength];
+		for (int i = 1; i < chainLength; i++) {
+			final int which = i;
+
+			links[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < recorder.size(); j++)
+						passToken(lock, waiters, token, which);
+				}
+			}).setName("chain " + i);
+			links[i].fork();
+		}
+
+		recorder.start();
+		for (int j = 0; j < recorder.size(); j++) {
+			recorder.begin();
+			passToken(lock, waiters, token, 0);
+			recorder.end();
+		}
+		recorder.stop();
+
+		for (int i = 1; i < chainLength; i++)
+			links[i].join();
+	}
+
+	/**
+	 * <tt>chainLength - 1</tt> threads sleep on one condition variable, and
+	 * this thread wakes them all at once. One operation waits until every
+	 * sleeper has reacquired the lock and gone back to sleep, then wakes them
+	 * all again. Set <tt>Condition.waitMorphing</tt> to compare the two ways
+	 * woken threads get the lock back.
+	 */
+	private void conditionBroadcast(final Recorder recorder,
+			boolean useCondition2) {
+		final Lock lock = new Lock();
+		final Waiter waiter = useCondition2 ? newCondition2(lock)
+				: newCondition(lock);
+		final Condition2 allAsleep = new Condition2(lock);
+		final int numSleepers = chainLength - 1;
+		// the sleepers arrived this round, and the rounds woken so far
+		final int[] state = new int[2];
+
+		KThread[] sleepers = new KThread[numSleepers];
+		for (int i = 0; i < numSleepers; i++) {
+			sleepers[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					for (int j = 0; j < recorder.size(); j++) {
+						if (++state[0] == numSleepers)
+							allAsleep.wake();
+						while (state[1] == j)
+							waiter.sleep();
+					}
+					lock.release();
+				}
+			}).setName("sleeper " + i);
+			sleepers[i].fork();
+		}
+
+		lock.acquire();
+		recorder.start();
+		for (int j = 0; j < recorder.size(); j++) {
+			recorder.begin();
+			while (state[0] < numSleepers)
+				allAsleep.sleep();
+			state[0] = 0;
+			state[1] = j + 1;
+			waiter.wakeAll();
+			recorder.end();
+		}
+		recorder.stop();
+		lock.release();
+
+		for (int i = 0; i < numSleepers; i++)
+			sleepers[i].join();
+	}
+
+	/**
+	 * This thread streams words to a partner through a communicator. One
+	 * operation moves <tt>batchSize</tt> words, either one <tt>speak()</tt> and
+	 * <tt>listen()</tt> at a time, or with <tt>speakAll()</tt> and
+	 * <tt>listenInto()</tt>.
+	 */
+	private void communicatorStream(final Recorder recorder,
+			final boolean batched) {
+		final Communicator communicator = new Communicator();
+		final int[] words = new int[batchSize];
+
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				int[] buffer = new int[batchSize];
+				long remaining = (long) recorder.size() * batchSize;
+
+				while (remaining > 0) {
+					if (batched)
+						remaining -= communicator.listenInto(buffer);
+					else {
+						communicator.listen();
+						remaining--;
+					}
+				}
+			}
+		}).setName("listener");
+		partner.fork();
+
+		recorder.start();
+		for (int i = 0; i < recorder.size(); i++) {
+			recorder.begin();
+			if (batched)
+				communicator.speakAll(words);
+			else {
+				for (int j = 0; j < batchSize; j++)
+					communicator.speak(words[j]);
+			}
+			recorder.end();
+		}
+		recorder.stop();
+
+		partner.join();
+	}
+
+	private void passToken(Lock lock, Waiter[] waiters, int[] token, int which) {
+		lock.acquire();
+		while (token[0] != which)
+			waiters[which].sleep();
+
+		token[0] = (which + 1) % waiters.length;
+		waiters[token[0]].wake();
+		lock.release();
+	}
+
+	private static Waiter newCondition(Lock lock) {
+		final Condition condition = new Condition(lock);
+
+		return new Waiter() {
+			public void sleep() {
+				condition.sleep();
+			}
+
+			public void wake() {
+				condition.wake();
+			}
+
+			public void wakeAll() {
+				condition.wakeAll();
+			}
+		};
+	}
+
+	private static Waiter newCondition2(Lock lock) {
+		final Condition2 condition = new Condition2(lock);
+
+		return new Waiter() {
+			public void sleep() {
+				condition.sleep();
+			}
+
+			public void wake() {
+				condition.wake();
+			}
+
+			public void wakeAll() {
+				condition.wakeAll();
+			}
+		};
+	}
+
+	private interface Benchmark {
+		void run(Recorder recorder);
+	}
+
+	/**
+	 * The part of <tt>Condition</tt> and <tt>Condition2</tt> the condition
+	 * benchmarks need.
+	 */
+	private interface Waiter {
+		void sleep();
+
+		void wake();
+
+		void wakeAll();
+	}
+
+	/**
+	 * Collects the latency of each operation, and the wall-clock time of the
+	 * whole run for the throughput figure.
+	 */
+	private static class Recorder {
+		Recorder(int size) {
+			samples = new long[size];
+		}
+
+		int size() {
+			return samples.length;
+		}
+
+		void start() {
+			startTime = System.nanoTime();
+		}
+
+		void stop() {
+			stopTime = System.nanoTime();
+		}
+
+		void begin() {
+			beginTime = System.nanoTime();
+		}
+
+		void end() {
+			samples[count++] = System.nanoTime() - beginTime;
+		}
+
+		void print(String name) {
+			Lib.assertTrue(count == samples.length);
+
+			long[] sorted = samples.clone();
+			Arrays.sort(sorted);
+
+			double seconds = (stopTime - startTime) / 1e9;
+
+			System.out.println(String.format(
+					"%-26s %9d %12.0f %10.2f %10.2f %10.2f %10.2f", name, count,
+					count / seconds, percentile(sorted, 0.50),
+					percentile(sorted, 0.90), percentile(sorted, 0.99),
+					sorted[count - 1] / 1e3));
+		}
+
+		private static double percentile(long[] sorted, double fraction) {
+			int index = Math.min(sorted.length - 1,
+					(int) (fraction * sorted.length));
+			return sorted[index] / 1e3;
+		}
+
+		private long[] samples;
+
+		private int count = 0;
+
+		private long startTime, stopTime, beginTime;
+	}
+
+	private static final Runnable emptyTarget = new Runnable() {
+		public void run() {
+		}
+	};
+
+	private int iterations, warmup;
+
+	private int stormSize, chainLength, batchSize;
+}
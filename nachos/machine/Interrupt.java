@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -52,7 +48,11 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		debugging = Lib.test(dbgInt);
+
+		wheelHeads = new PendingInterrupt[wheelSize];
+		wheelTails = new PendingInterrupt[wheelSize];
+		occupied = new long[wheelSize / 64];
 	}
 
 	/**
@@ -119,31 +119,76 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Skip the kernel ticks an idle loop would spend waiting for the next
+	 * pending interrupt. Time advances to the last tick that falls strictly
+	 * before that interrupt, so the next call to <tt>setStatus(true)</tt>
+	 * fires it at exactly the time the idle loop would have. Interrupts must
+	 * be disabled, and the caller must have nothing else to run.
+	 * 
+	 * <p>
+	 * Does nothing if no interrupt is pending or interrupt debugging is on,
+	 * so that the per-tick trace still appears.
+	 */
+	public void idle() {
+		Stats stats = privilege.stats;
+
+		Lib.assertTrue(disabled());
+
+		if (debugging || nextDeadline == Long.MAX_VALUE)
+			return;
+
+		long skip = (nextDeadline - stats.totalTicks - 1) / Stats.KernelTick;
+		if (skip <= 0)
+			return;
+
+		stats.kernelTicks += skip * Stats.KernelTick;
+		stats.totalTicks += skip * Stats.KernelTick;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = allocate(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (time < base + wheelSize)
+			insertWheel(toOccur);
+		else
+			insertOverflow(toOccur);
+
+		if (time < nextDeadline)
+			nextDeadline = time;
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
 		Stats stats = privilege.stats;
 
+		Lib.assertTrue(count > 0);
+
+		int ticks = inKernelMode ? Stats.KernelTick : Stats.UserTick;
+
+		// nothing may come due before the last of the batched ticks
+		Lib.assertTrue(count == 1
+				|| stats.totalTicks + (long) (count - 1) * ticks < nextDeadline);
+
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += (long) count * ticks;
+			stats.totalTicks += (long) count * ticks;
 		}
 		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += (long) count * ticks;
+			stats.totalTicks += (long) count * ticks;
 		}
 
-		if (Lib.test(dbgInt))
+		if (debugging)
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
 		enabled = false;
@@ -151,85 +196,203 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long nextPendingTime() {
+		return nextDeadline;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
 		Lib.assertTrue(disabled());
 
-		if (Lib.test(dbgInt))
+		if (debugging)
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (time < nextDeadline)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (nextDeadline <= time) {
+			PendingInterrupt next = removeFirst();
 
 			Lib.assertTrue(next.time <= time);
 
+			String type = next.type;
+			Runnable handler = next.handler;
+			release(next);
+
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	/**
+	 * Append an interrupt to its wheel slot. Every slot covers exactly one
+	 * time inside the window, and ids only grow, so the tail is always the
+	 * right place.
+	 */
+	private void insertWheel(PendingInterrupt toOccur) {
+		int slot = (int) (toOccur.time & wheelMask);
+
+		if (wheelTails[slot] == null) {
+			wheelHeads[slot] = toOccur;
+			occupied[slot >>> 6] |= 1L << slot;
+		}
+		else {
+			wheelTails[slot].next = toOccur;
+		}
+		wheelTails[slot] = toOccur;
+	}
+
+	/**
+	 * Insert an interrupt that lies beyond the wheel's window into the
+	 * overflow list, which is kept sorted by time and then id.
+	 */
+	private void insertOverflow(PendingInterrupt toOccur) {
+		if (overflow == null || overflow.time > toOccur.time) {
+			toOccur.next = overflow;
+			overflow = toOccur;
+			return;
+		}
+
+		PendingInterrupt prev = overflow;
+		while (prev.next != null && prev.next.time <= toOccur.time)
+			prev = prev.next;
+
+		toOccur.next = prev.next;
+		prev.next = toOccur;
+	}
+
+	/**
+	 * Remove the interrupt due at <tt>nextDeadline</tt>, slide the window
+	 * up to that time, and find the new deadline.
+	 */
+	private PendingInterrupt removeFirst() {
+		// the wheel may be empty with the deadline still in overflow
+		if (nextDeadline >= base + wheelSize)
+			advance(nextDeadline);
+
+		int slot = (int) (nextDeadline & wheelMask);
+		PendingInterrupt first = wheelHeads[slot];
+
+		wheelHeads[slot] = first.next;
+		if (first.next == null) {
+			wheelTails[slot] = null;
+			occupied[slot >>> 6] &= ~(1L << slot);
+		}
+		first.next = null;
+
+		advance(first.time);
+		nextDeadline = findDeadline();
+
+		return first;
+	}
+
+	/**
+	 * Slide the window up to <tt>time</tt> and pull in anything from the
+	 * overflow list that it now covers, oldest first.
+	 */
+	private void advance(long time) {
+		base = time;
+
+		while (overflow != null && overflow.time < base + wheelSize) {
+			PendingInterrupt toOccur = overflow;
+			overflow = toOccur.next;
+			toOccur.next = null;
+			insertWheel(toOccur);
+		}
+	}
+
+	/**
+	 * Find the earliest pending time. Slots are searched in window order
+	 * starting at <tt>base</tt>, a word of the occupancy bitmap at a time.
+	 * Anything in the wheel comes before everything in the overflow list.
+	 */
+	private long findDeadline() {
+		int start = (int) (base & wheelMask);
+		int word = start >>> 6;
+		long bits = occupied[word] & (-1L << start);
+
+		// the last pass revisits the first word for the slots below start
+		for (int i = 0; i <= occupied.length; i++) {
+			if (bits != 0) {
+				int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return wheelHeads[slot].time;
+			}
+
+			word = (word + 1) & (occupied.length - 1);
+			bits = occupied[word];
+		}
+
+		return (overflow == null) ? Long.MAX_VALUE : overflow.time;
+	}
+
+	private PendingInterrupt allocate(long time, String type, Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+
+		if (toOccur == null) {
+			toOccur = new PendingInterrupt();
+		}
+		else {
+			freeList = toOccur.next;
+			toOccur.next = null;
+		}
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+
+		return toOccur;
+	}
+
+	private void release(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.next = freeList;
+		freeList = toOccur;
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		int start = (int) (base & wheelMask);
+		for (int i = 0; i < wheelSize; i++) {
+			for (PendingInterrupt toOccur = wheelHeads[(start + i) & wheelMask]; toOccur != null; toOccur = toOccur.next)
+				System.out.println("  " + toOccur.type + ", scheduled at "
+						+ toOccur.time);
+		}
+		for (PendingInterrupt toOccur = overflow; toOccur != null; toOccur = toOccur.next)
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
-		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
-
+	/**
+	 * A pending interrupt. Nodes are linked through <tt>next</tt>, either in
+	 * a wheel slot, in the overflow list, or in the free list, so scheduling
+	 * an interrupt allocates nothing once the pool has warmed up.
+	 */
+	private static class PendingInterrupt {
 		long time;
 
 		String type;
 
 		Runnable handler;
 
-		private long id;
+		long id;
+
+		PendingInterrupt next;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +401,29 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private boolean debugging;
+
+	/**
+	 * Pending interrupts due before <tt>base + wheelSize</tt> live in the
+	 * wheel, one slot per tick; later ones wait in <tt>overflow</tt>.
+	 * <tt>base</tt> never passes the earliest pending time.
+	 */
+	private PendingInterrupt[] wheelHeads, wheelTails;
+
+	private long[] occupied;
+
+	private PendingInterrupt overflow = null;
+
+	private PendingInterrupt freeList = null;
+
+	private long base = 0;
+
+	/** The earliest pending time, or <tt>Long.MAX_VALUE</tt> if none. */
+	private long nextDeadline = Long.MAX_VALUE;
+
+	private static final int wheelSize = 4096;
+
+	private static final int wheelMask = wheelSize - 1;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +435,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long nextPendingTime() {
+			return Interrupt.this.nextPendingTime();
+		}
 	}
 }
@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,17 +43,47 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		String executionMode = Config.getString("Processor.executionMode",
+				"interpreter");
+		Lib.assertTrue(executionMode.equals("interpreter")
+				|| executionMode.equals("block"),
+				"Processor.executionMode must be interpreter or block");
+		usingBlocks = executionMode.equals("block");
+
+		tracing = Lib.test(dbgProcessor);
+		disassembling = Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		memory = ByteBuffer.wrap(mainMemory).order(ByteOrder.LITTLE_ENDIAN);
+		decodedPages = new Decoded[numPhysPages][];
+		blockPages = new Block[numPhysPages][];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			// enough buckets to keep the chains short
+			int numBuckets = 1;
+			while (numBuckets < tlbSize * 2)
+				numBuckets *= 2;
+
+			tlbBuckets = new int[numBuckets];
+			for (int i = 0; i < numBuckets; i++)
+				tlbBuckets[i] = -1;
+
+			tlbNext = new int[tlbSize];
+			for (int i = 0; i < tlbSize; i++)
+				tlbIndexAdd(i);
 		}
 		else {
 			translations = null;
@@ -89,10 +122,17 @@ public final class Processor {
 
 		registers[regNextPC] = registers[regPC] + 4;
 
+		flushTranslations();
+
 		Machine.autoGrader().runProcessor(privilege);
 
 		Instruction inst = new Instruction();
 
+		// tracing prints every instruction, and tick tracing every tick, so
+		// only the interpreter supports them
+		if (usingBlocks && !tracing && !disassembling && !Lib.test(dbgInterrupt))
+			runBlocks(inst);
+
 		while (true) {
 			try {
 				inst.run();
@@ -105,6 +145,49 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Execute instructions a basic block at a time. Never returns.
+	 * 
+	 * <p>
+	 * Time is charged once per block instead of once per instruction. To keep
+	 * the simulated time identical to <tt>run()</tt>, a block is cut short so
+	 * that no pending interrupt can come due before its last instruction, and
+	 * an exception charges the instructions completed before it, then handles
+	 * the exception and charges the faulting instruction, exactly as the
+	 * interpreter would.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 */
+	private void runBlocks(Instruction inst) {
+		while (true) {
+			// number of instructions that can run before an interrupt is due
+			long delta = Math.min(privilege.interrupt.nextPendingTime()
+					- privilege.stats.totalTicks, (long) maxBlockLength
+					* Stats.UserTick);
+			int limit = (int) Math.max(1, (delta + Stats.UserTick - 1)
+					/ Stats.UserTick);
+
+			inst.executed = 0;
+
+			try {
+				int paddr = translate(registers[regPC], 4, false,
+						fetchTranslations);
+				inst.runBlock(getBlock(paddr), paddr, limit);
+			}
+			catch (MipsException e) {
+				if (inst.executed > 0)
+					privilege.interrupt.tick(false, inst.executed);
+
+				e.handle();
+
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			privilege.interrupt.tick(false, inst.executed);
+		}
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -175,6 +258,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushTranslations();
 	}
 
 	/**
@@ -215,7 +299,67 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		tlbIndexRemove(number);
 		translations[number] = new TranslationEntry(entry);
+		tlbIndexAdd(number);
+	}
+
+	/**
+	 * Find the TLB entry that maps the specified virtual page. If more than
+	 * one valid entry matches, the lowest numbered one is used, which is the
+	 * entry a linear search of the TLB would find.
+	 * 
+	 * @param vpn the virtual page number to look up.
+	 * @return the index of the matching TLB entry, or -1 if there is none.
+	 */
+	private int tlbLookup(int vpn) {
+		int found = -1;
+
+		int bucket = vpn & (tlbBuckets.length - 1);
+
+		for (int i = tlbBuckets[bucket]; i != -1; i = tlbNext[i]) {
+			if (translations[i].valid && translations[i].vpn == vpn
+					&& (found == -1 || i < found))
+				found = i;
+		}
+
+		return found;
+	}
+
+	/**
+	 * Add TLB entry <i>number</i> to the chain for its virtual page number.
+	 * 
+	 * @param number the index into the TLB.
+	 */
+	private void tlbIndexAdd(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		tlbNext[number] = tlbBuckets[bucket];
+		tlbBuckets[bucket] = number;
+	}
+
+	/**
+	 * Remove TLB entry <i>number</i> from the chain for its virtual page
+	 * number. Must be called before the entry is overwritten.
+	 * 
+	 * @param number the index into the TLB.
+	 */
+	private void tlbIndexRemove(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		if (tlbBuckets[bucket] == number) {
+			tlbBuckets[bucket] = tlbNext[number];
+			return;
+		}
+
+		for (int i = tlbBuckets[bucket]; i != -1; i = tlbNext[i]) {
+			if (tlbNext[i] == number) {
+				tlbNext[i] = tlbNext[number];
+				return;
+			}
+		}
+
+		Lib.assertNotReached();
 	}
 
 	/**
@@ -278,20 +422,58 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Forget all cached page table translations. The kernel only gets to
+	 * change the page table while handling an exception or an interrupt, or
+	 * by installing a new one with <tt>setPageTable()</tt>, and user
+	 * instructions are the only thing that fill the caches, so flushing at
+	 * each of those points is enough to keep them consistent.
+	 */
+	private void flushTranslations() {
+		fetchTranslations.flush();
+		dataTranslations.flush();
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * When not using a TLB, page table entries that pass these checks are
+	 * remembered in <i>cache</i>, and later references to the same page skip
+	 * straight to setting the used and dirty bits. The caches are flushed
+	 * whenever the kernel might change the page table, see
+	 * <tt>flushTranslations()</tt>.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param cache the recently used translations for this kind of reference.
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
-			throws MipsException {
+	private int translate(int vaddr, int size, boolean writing,
+			TranslationCache cache) throws MipsException {
+		// fast path: a page table entry checked since the last flush
+		if (!usingTLB && !tracing && (vaddr & (size - 1)) == 0) {
+			int vpn = pageFromAddress(vaddr);
+			int index = vpn % TranslationCache.size;
+
+			if (cache.vpns[index] == vpn) {
+				TranslationEntry entry = cache.entries[index];
+
+				if (!writing || !entry.readOnly) {
+					entry.used = true;
+					if (writing)
+						entry.dirty = true;
+
+					return cache.pageBases[index] + offsetFromAddress(vaddr);
+				}
+			}
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -319,14 +501,12 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look up the TLB entry with a matching vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+			int number = tlbLookup(vpn);
+			if (number != -1)
+				entry = translations[number];
+
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -354,6 +534,9 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
+		if (!usingTLB)
+			cache.add(vpn, entry);
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
@@ -369,16 +552,29 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
-
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int paddr = translate(vaddr, size, false, dataTranslations);
+
+		int value;
+		switch (size) {
+		case 1:
+			value = memory.get(paddr);
+			break;
+		case 2:
+			value = memory.getShort(paddr);
+			break;
+		case 4:
+			value = memory.getInt(paddr);
+			break;
+		default:
+			Lib.assertNotReached();
+			return -1;
+		}
 
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\t\tvalue read=0x"
 					+ Lib.toHexString(value, size * 2));
 
@@ -395,14 +591,101 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+		int paddr = translate(vaddr, size, true, dataTranslations);
+
+		switch (size) {
+		case 1:
+			memory.put(paddr, (byte) value);
+			break;
+		case 2:
+			memory.putShort(paddr, (short) value);
+			break;
+		case 4:
+			memory.putInt(paddr, value);
+			break;
+		default:
+			Lib.assertNotReached();
+		}
+
+		if (decodedPages[paddr / pageSize] != null
+				|| blockPages[paddr / pageSize] != null)
+			invalidateDecoded(paddr / pageSize);
+	}
+
+	/**
+	 * Return the decoded form of the instruction word <i>value</i>, found at
+	 * physical address <i>paddr</i>. Decoded instructions are cached per
+	 * physical page. Since the kernel may rewrite a physical page directly
+	 * (for example when loading a different virtual page into it), a cached
+	 * entry is only reused if it was decoded from the same instruction word.
+	 * 
+	 * @param paddr the physical address of the instruction.
+	 * @param value the instruction word read from <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private Decoded getDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
+
+		Decoded[] page = decodedPages[ppn];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodedPages[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		Decoded decoded = page[index];
+		if (decoded == null || decoded.value != value) {
+			decoded = new Decoded(value);
+			page[index] = decoded;
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * Return the basic block starting at physical address <i>paddr</i>,
+	 * building it if it is not cached or if the instruction word it starts
+	 * with has changed.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the basic block starting at <i>paddr</i>.
+	 */
+	private Block getBlock(int paddr) {
+		int ppn = paddr / pageSize;
+
+		Block[] page = blockPages[ppn];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockPages[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		Block block = page[index];
+		if (block == null
+				|| block.instructions[0].value != memory.getInt(paddr)) {
+			block = new Block(paddr);
+			page[index] = block;
+		}
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		return block;
+	}
+
+	/**
+	 * Discard any decoded instructions and basic blocks cached for the
+	 * specified physical page. Called whenever a user store modifies the page.
+	 * 
+	 * @param ppn the physical page that was written.
+	 */
+	private void invalidateDecoded(int ppn) {
+		decodedPages[ppn] = null;
+		blockPages[ppn] = null;
 	}
 
 	/**
@@ -549,15 +832,39 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/** <tt>true</tt> if memory references are being traced. */
+	private boolean tracing;
+
+	/** <tt>true</tt> if instructions are being disassembled as they run. */
+	private boolean disassembling;
+
+	/** <tt>true</tt> if executing a basic block at a time. */
+	private boolean usingBlocks;
+
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/**
+	 * Hash chains over the TLB, keyed by virtual page number. Each bucket
+	 * holds the index of the first TLB entry in its chain, or -1.
+	 */
+	private int[] tlbBuckets;
+
+	/** The next TLB entry in the same hash chain, or -1. */
+	private int[] tlbNext;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/** Recently used translations for instruction fetches. */
+	private TranslationCache fetchTranslations = new TranslationCache();
+
+	/** Recently used translations for loads and stores. */
+	private TranslationCache dataTranslations = new TranslationCache();
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -570,6 +877,28 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * A little-endian view of <tt>mainMemory</tt>, used for the loads and
+	 * stores made by user instructions.
+	 */
+	private ByteBuffer memory;
+
+	/**
+	 * Decoded instructions, indexed by physical page number and then by word
+	 * offset within the page. A page's array is allocated the first time an
+	 * instruction is fetched from it.
+	 */
+	private Decoded[][] decodedPages;
+
+	/**
+	 * Basic blocks, indexed by the physical page number and word offset of
+	 * their first instruction.
+	 */
+	private Block[][] blockPages;
+
+	/** A basic block never extends past the end of its page. */
+	private static final int maxBlockLength = pageSize / 4;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,9 +908,12 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgInterrupt = 'i';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			flushTranslations();
 		}
 	}
 
@@ -609,6 +941,7 @@ public final class Processor {
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
+			flushTranslations();
 
 			Lib.assertTrue(exceptionHandler != null);
 
@@ -633,72 +966,87 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Run the instructions of <i>block</i>, at most <i>limit</i> of them.
+		 * The current PC must be the address of the block's first
+		 * instruction, located at physical address <i>paddr</i>. Stops early
+		 * if control leaves the block or if an instruction word no longer
+		 * matches the one the block was built from. <tt>executed</tt> counts
+		 * the instructions that completed.
+		 */
+		public void runBlock(Block block, int paddr, int limit)
+				throws MipsException {
+			int vaddr = registers[regPC];
+
+			while (executed < limit && executed < block.length) {
+				int offset = executed * 4;
+
+				if (registers[regPC] != vaddr + offset)
+					return;
+
+				decoded = block.instructions[executed];
+				value = memory.getInt(paddr + offset);
+				if (value != decoded.value)
+					return;
+
+				decode();
+				execute();
+				writeBack();
+
+				executed++;
+			}
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
 
 		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if (disassembling
+					&& ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+							|| Lib.test(dbgFullDisassemble)))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			if (tracing)
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			int paddr = translate(registers[regPC], 4, false,
+					fetchTranslations);
+			value = memory.getInt(paddr);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			if (tracing)
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			decoded = getDecoded(paddr, value);
+		}
+
+		private void decode() {
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.info.operation;
+			name = decoded.info.name;
+			format = decoded.info.format;
+			flags = decoded.info.flags;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
+			size = decoded.size;
 
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
+			dstReg = decoded.dstReg;
 
 			// get jtarget
 			if (format == Mips.RFMT)
@@ -710,11 +1058,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -735,7 +1078,7 @@ public final class Processor {
 				src2 &= 0xFFFFFFFFL;
 			}
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (disassembling)
 				print();
 		}
 
@@ -1050,7 +1393,8 @@ public final class Processor {
 			if (test(Mips.DST) && dstReg != 0)
 				registers[dstReg] = (int) dst;
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+			if (disassembling && (test(Mips.DST) || test(Mips.DELAYEDLOAD))
+					&& dstReg != 0) {
 				if (Lib.test(dbgFullDisassemble)) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
 					if (test(Mips.DELAYEDLOAD))
@@ -1064,12 +1408,18 @@ public final class Processor {
 
 			advancePC(nextPC);
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if (disassembling
+					&& ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+							|| Lib.test(dbgFullDisassemble)))
 				System.out.print("\n");
 		}
 
+		/** The number of instructions completed by <tt>runBlock()</tt>. */
+		int executed;
+
 		// state used to execute a single instruction
+		Decoded decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1087,6 +1437,135 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * A small direct-mapped cache of page table entries that have already
+	 * passed the checks in <tt>translate()</tt>, indexed by virtual page
+	 * number.
+	 */
+	private static class TranslationCache {
+		TranslationCache() {
+			flush();
+		}
+
+		void flush() {
+			for (int i = 0; i < size; i++) {
+				vpns[i] = -1;
+				entries[i] = null;
+			}
+		}
+
+		void add(int vpn, TranslationEntry entry) {
+			int index = vpn % size;
+
+			vpns[index] = vpn;
+			entries[index] = entry;
+			pageBases[index] = entry.ppn * pageSize;
+		}
+
+		static final int size = 4;
+
+		int[] vpns = new int[size];
+
+		TranslationEntry[] entries = new TranslationEntry[size];
+
+		int[] pageBases = new int[size];
+	}
+
+	/**
+	 * The fields of an instruction that depend only on the instruction word.
+	 * Everything that depends on register contents is still worked out by
+	 * <tt>Instruction.decode()</tt> each time the instruction runs.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, info.flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, info.flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, info.flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, info.flags))
+				dstReg = regRA;
+			else if (info.format == Mips.IFMT)
+				dstReg = rt;
+			else if (info.format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, info.flags)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm;
+
+		Mips info;
+
+		int size, dstReg;
+	}
+
+	/**
+	 * A run of straight-line instructions within one physical page. A block
+	 * ends after a branch and its delay slot, after a syscall or an invalid
+	 * instruction, or at the end of the page.
+	 */
+	private class Block {
+		Block(int paddr) {
+			int end = (paddr / pageSize + 1) * pageSize;
+
+			instructions = new Decoded[(end - paddr) / 4];
+			length = 0;
+
+			boolean delaySlot = false;
+			for (int p = paddr; p < end; p += 4) {
+				Decoded decoded = getDecoded(p, memory.getInt(p));
+				instructions[length++] = decoded;
+
+				int operation = decoded.info.operation;
+				if (delaySlot || operation == Mips.SYSCALL
+						|| operation == Mips.INVALID
+						|| operation == Mips.UNIMPL)
+					break;
+
+				delaySlot = Lib.test(Mips.BRANCH, decoded.info.flags);
+			}
+		}
+
+		Decoded[] instructions;
+
+		int length;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,12 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * By default each TCB gets a platform thread and TCBs hand off control through
+ * monitors. Setting <tt>TCB.threads = handoff</tt> switches to park/unpark and
+ * virtual threads where available, and allows up to
+ * <tt>TCB.maxHandoffThreads</tt> TCBs instead of <tt>maxThreads</tt>.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +47,51 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String mode = Config.getString("TCB.threads", "platform");
+		Lib.assertTrue(mode.equals("platform") || mode.equals("handoff"),
+				"TCB.threads must be platform or handoff");
+
+		if (mode.equals("handoff")) {
+			handoff = true;
+			threadLimit = Config.getInteger("TCB.maxHandoffThreads", 10000);
+			stackSize = Config.getInteger("TCB.stackSize", 256 * 1024);
+			findVirtualThreads();
+		}
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual().unstarted(Runnable)</tt>. This has to go
+	 * through reflection so that Nachos still builds and runs on JVMs without
+	 * virtual threads, which then fall back to platform threads with a small
+	 * stack.
+	 */
+	private static void findVirtualThreads() {
+		try {
+			virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			virtualUnstarted = Class.forName("java.lang.Thread$Builder")
+					.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+			virtualBuilder = null;
+			virtualUnstarted = null;
+		}
+	}
+
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualUnstarted != null) {
+			try {
+				return (Thread) virtualUnstarted.invoke(virtualBuilder, target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("could not create virtual thread: " + e);
+			}
+		}
+
+		if (handoff)
+			return new Thread(null, target, "TCB", stackSize);
+
+		return new Thread(target);
 	}
 
 	/**
@@ -68,7 +121,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +155,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -297,13 +350,25 @@ public final class TCB {
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * In handoff mode the thread parks instead, which does not pin a virtual
+	 * thread to its carrier the way a monitor wait does.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
+	private void waitForInterrupt() {
+		if (handoff) {
+			while (!running)
+				LockSupport.park(this);
+			return;
+		}
+
+		synchronized (this) {
+			while (!running) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
 			}
 		}
 	}
@@ -314,9 +379,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		if (handoff) {
+			running = true;
+			LockSupport.unpark(javaThread);
+			return;
+		}
+
+		synchronized (this) {
+			running = true;
+			notify();
+		}
 	}
 
 	private void associateThread(KThread thread) {
@@ -346,6 +419,25 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The limit actually enforced by <tt>start(Runnable)</tt>:
+	 * <tt>maxThreads</tt>, or <tt>TCB.maxHandoffThreads</tt> in handoff mode.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * <tt>true</tt> if <tt>TCB.threads</tt> is <tt>handoff</tt>: TCBs pass
+	 * control with <tt>LockSupport</tt> park/unpark instead of monitors, and
+	 * run on virtual threads when the JVM has them.
+	 */
+	private static boolean handoff = false;
+
+	private static int stackSize;
+
+	private static Object virtualBuilder = null;
+
+	private static Method virtualUnstarted = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -401,9 +493,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile so that handoff mode can pass control without a
+	 * monitor; setting it publishes everything the previous TCB wrote.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
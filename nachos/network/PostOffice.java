@@ -24,7 +24,7 @@ public class PostOffice {
 	public PostOffice() {
 		messageReceived = new Semaphore(0);
 		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		sendLock = new Lock().setName("PostOffice.sendLock");
 
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
@@ -157,6 +157,26 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by <i>count</i> ticks at once. No pending
+		 * interrupt may become due before the last of these ticks, so the
+		 * result is the same as calling <tt>tick()</tt> <i>count</i> times.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the current thread is running
+		 * kernel code, <tt>false</tt> if the current thread is running MIPS
+		 * user code.
+		 * @param count the number of ticks to advance by.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the time at which the next pending interrupt is due.
+		 * 
+		 * @return the time of the earliest pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long nextPendingTime();
 	}
 
 	/**
@@ -0,0 +1,240 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A lock for short critical sections that yields and retries a few times
+ * before putting a thread to sleep on a busy lock.
+ *
+ * <p>
+ * The lock keeps a moving average of how many ticks it is held. When a thread
+ * finds it busy and the holder has held it for less than about twice that
+ * long, the holder is probably about to release it, so the thread yields to
+ * let the holder run and tries again, up to a limit. The limit adapts: it
+ * grows by one each time a yielding thread gets the lock, and halves each time
+ * it runs out and the thread has to sleep after all, between 1 and
+ * <tt>AdaptiveLock.maxSpins</tt>. A thread never yields to a holder that has
+ * held the lock much longer than usual, since that holder is most likely
+ * blocked, nor when other threads are already sleeping on the lock, since
+ * <tt>release()</tt> will hand it to them first.
+ *
+ * <p>
+ * A thread that yields can only take the lock while it is free, and
+ * <tt>release()</tt> hands the lock straight to the first sleeping thread, so
+ * yielding threads never overtake sleeping ones. The counters returned by
+ * the <tt>get</tt> methods, and printed by <tt>print()</tt>, show how often
+ * the lock was busy, how often yielding paid off, and how long sleeping
+ * threads waited.
+ */
+public class AdaptiveLock extends Lock {
+	/**
+	 * Allocate a new adaptive lock. The lock will initially be <i>free</i>.
+	 */
+	public AdaptiveLock() {
+		maxSpins = Config.getInteger("AdaptiveLock.maxSpins", 4);
+		Lib.assertTrue(maxSpins >= 0);
+
+		spinLimit = Math.min(1, maxSpins);
+	}
+
+	/**
+	 * Atomically acquire this lock, yielding and retrying first if it is busy
+	 * but likely to be released soon. The current thread must not already hold
+	 * this lock.
+	 */
+	public void acquire() {
+		numAcquires++;
+
+		if (tryHold(-1))
+			return;
+
+		numContended++;
+
+		long start = Machine.timer().getTime();
+		if (numSleeping == 0 && start - holdStart <= 2 * averageHold + 1) {
+			int limit = spinLimit;
+
+			for (int i = 0; i < limit; i++) {
+				numSpins++;
+				KThread.yield();
+
+				if (tryHold(start)) {
+					numSpinAcquires++;
+					if (spinLimit < maxSpins)
+						spinLimit++;
+
+					return;
+				}
+			}
+
+			spinLimit = Math.max(Math.min(1, maxSpins), spinLimit / 2);
+		}
+
+		numBlocked++;
+		numSleeping++;
+		super.acquire(start);
+		numSleeping--;
+
+		long time = Machine.timer().getTime();
+		totalBlockedWait += time - start;
+		maxBlockedWait = Math.max(maxBlockedWait, time - start);
+	}
+
+	/**
+	 * Atomically release this lock, allowing other threads to acquire it, and
+	 * add the time it was held to the history.
+	 */
+	public void release() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		long time = Machine.timer().getTime();
+		averageHold += ((time - holdStart) - averageHold) / 8;
+
+		super.release();
+
+		// a sleeping thread, if any, holds the lock from now on
+		holdStart = time;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock if it is free, noting when it was acquired before a
+	 * timer interrupt can switch to another thread.
+	 *
+	 * @param waitStart when the current thread started waiting for this lock,
+	 * or -1 if it has not waited.
+	 * @return <tt>true</tt> if the current thread now holds this lock.
+	 */
+	private boolean tryHold(long waitStart) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean acquired = tryAcquire(waitStart);
+		if (acquired)
+			holdStart = Machine.timer().getTime();
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
+	/**
+	 * Return the number of calls to <tt>acquire()</tt>.
+	 *
+	 * @return the number of acquisitions.
+	 */
+	public long getAcquires() {
+		return numAcquires;
+	}
+
+	/**
+	 * Return the number of calls to <tt>acquire()</tt> that found the lock
+	 * busy.
+	 *
+	 * @return the number of contended acquisitions.
+	 */
+	public long getContended() {
+		return numContended;
+	}
+
+	/**
+	 * Return the number of contended acquisitions that got the lock by
+	 * yielding, without sleeping.
+	 *
+	 * @return the number of acquisitions won by yielding.
+	 */
+	public long getSpinAcquires() {
+		return numSpinAcquires;
+	}
+
+	/**
+	 * Return the number of acquisitions that had to sleep.
+	 *
+	 * @return the number of acquisitions that slept.
+	 */
+	public long getBlocked() {
+		return numBlocked;
+	}
+
+	/**
+	 * Return the total number of yields made waiting for this lock.
+	 *
+	 * @return the number of yields.
+	 */
+	public long getSpins() {
+		return numSpins;
+	}
+
+	/**
+	 * Return the average number of ticks the lock is held, weighted towards
+	 * recent acquisitions.
+	 *
+	 * @return the average hold time in ticks.
+	 */
+	public long getAverageHold() {
+		return averageHold;
+	}
+
+	/**
+	 * Return the longest time, in ticks, that any thread slept waiting for this
+	 * lock. Together with the average, this shows how fairly the lock was
+	 * handed out.
+	 *
+	 * @return the longest wait in ticks.
+	 */
+	public long getMaxBlockedWait() {
+		return maxBlockedWait;
+	}
+
+	/**
+	 * Return the average time, in ticks, that threads slept waiting for this
+	 * lock.
+	 *
+	 * @return the average wait in ticks.
+	 */
+	public long getAverageBlockedWait() {
+		return (numBlocked == 0) ? 0 : totalBlockedWait / numBlocked;
+	}
+
+	/**
+	 * Set the name this lock is reported under.
+	 *
+	 * @param name the name to give to this lock.
+	 * @return this lock.
+	 */
+	public AdaptiveLock setName(String name) {
+		super.setName(name);
+		return this;
+	}
+
+	/**
+	 * Print out the counters of this lock, under the name given with
+	 * <tt>setName()</tt>.
+	 */
+	public void print() {
+		System.out.println(((name != null) ? name : "AdaptiveLock")
+				+ ": acquires " + numAcquires + ", contended "
+				+ numContended + ", won by yielding " + numSpinAcquires
+				+ " (" + numSpins + " yields), slept " + numBlocked
+				+ ", average hold " + averageHold + ", wait average "
+				+ getAverageBlockedWait() + " max " + maxBlockedWait);
+	}
+
+	private int maxSpins;
+
+	/** How many times the next contended acquisition will yield. */
+	private int spinLimit;
+
+	/** When the current holder got the lock. */
+	private long holdStart = 0;
+
+	private long averageHold = 0;
+
+	private long numAcquires = 0, numContended = 0, numSpinAcquires = 0;
+
+	private long numBlocked = 0, numSpins = 0;
+
+	/** Threads sleeping in <tt>acquire()</tt>. */
+	private int numSleeping = 0;
+
+	private long totalBlockedWait = 0, maxBlockedWait = 0;
+}
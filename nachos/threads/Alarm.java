@@ -1,25 +1,30 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.*;
-import java.lang.Long;
 
+import java.util.Arrays;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a binary min-heap ordered by wake-up time, and
+ * then by when they went to sleep. Each thread's heap entry is allocated once
+ * and remembers its position, so <tt>waitUntil()</tt> and <tt>cancel()</tt> take
+ * logarithmic time and a timer interrupt with nobody due only looks at the top
+ * of the heap. The heap is shared by every <tt>Alarm</tt>, since whichever one
+ * was created last owns the timer interrupt; a thread has at most one timer
+ * set.
  */
 public class Alarm {
-
-	private Vector<KThread> thread_list;
-	private ArrayList<Long> time_list;
-
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
 	 * 
 	 * <p>
-	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
+	 * <b>Note</b>: every alarm shares the same sleeping threads, so it does not
+	 * matter which alarm owns the timer interrupt handler.
 	 */
 	public Alarm() {
 		Machine.timer().setInterruptHandler(new Runnable() {
@@ -27,36 +32,29 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
-		thread_list = new Vector<KThread>();
-		time_list = new ArrayList<Long> ();
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes up every
+	 * thread whose time has come, then causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run,
+	 * unless the scheduler says its time slice is not used up.
 	 */
 	public void timerInterrupt() {
 		boolean intStatus = Machine.interrupt().disable();
-		//KThread.currentThread().yield();
-		for(int i =0; i < time_list.size();i++){
-			//if(time_list.get(i).longValue() <=0 && time_list.get(i).longValue()>-500){
-			//	time_list.set(i, new Long(-501));
-			//	thread_list.get(i).ready();	
-			//}
-			//else time_list.set(i, new Long(time_list.get(i).longValue() -500));
-			
-			//time_list.get(i).longValue() >=0 &&
-			if(Machine.timer().getTime()>= time_list.get(i).longValue())
-			{	thread_list.get(i).ready();
-				thread_list.remove(i);
-				time_list.remove(i);
 
-			}
+		long time = Machine.timer().getTime();
+		while (numSleeping > 0 && sleeping[0].wakeTime <= time) {
+			Sleeper sleeper = sleeping[0];
+			remove(sleeper);
+			sleeper.thread.ready();
 		}
+
+		boolean yield = ThreadedKernel.scheduler.timerInterrupt();
 		Machine.interrupt().restore(intStatus);
-		KThread.currentThread().yield();
+		if (yield)
+			KThread.yield();
 	}
 
 	/**
@@ -72,48 +70,142 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		if (x <0) return;
-		boolean intStatus =Machine.interrupt().disable();
- 		thread_list.add(KThread.currentThread());
-                time_list.add(new Long(Machine.timer().getTime()+x));	
+		if (x < 0)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		if (thread.alarmSleeper == null)
+			thread.alarmSleeper = new Sleeper(thread);
+
+		Sleeper sleeper = thread.alarmSleeper;
+		Lib.assertTrue(sleeper.index < 0);
+
+		sleeper.wakeTime = Machine.timer().getTime() + x;
+		sleeper.arrival = numArrivals++;
+		insert(sleeper);
+
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
-
 	}
 
-        /**
-	 * Cancel any timer set by <i>thread</i>, effectively waking
-	 * up the thread immediately (placing it in the scheduler
-	 * ready set) and returning true.  If <i>thread</i> has no
-	 * timer set, return false.
+	/**
+	 * Cancel any timer set by <i>thread</i>, effectively waking up the thread
+	 * immediately (placing it in the scheduler ready set) and returning true.
+	 * If <i>thread</i> has no timer set, return false.
 	 * 
-	 * <p>
 	 * @param thread the thread whose timer should be cancelled.
 	 */
-        public boolean cancel(KThread thread) {
-			boolean intStatus =Machine.interrupt().disable();
-			int index = -1;
-			for (int i =0; i < thread_list.size();i++){
-				if(thread_list.get(i) == thread){
-					index = i;
-					break;
-				}
-			}
-			if (index >=0){
-				KThread thread_ = thread_list.get(index);
-				thread_list.remove(index);
-				time_list.remove(index);
-				thread_.ready();
-				Machine.interrupt().restore(intStatus);
-				return true;
-			}
-			else {
-				Machine.interrupt().restore(intStatus);
-				return false;
-			}
+	public boolean cancel(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Sleeper sleeper = thread.alarmSleeper;
+		boolean set = (sleeper != null && sleeper.index >= 0);
+		if (set) {
+			remove(sleeper);
+			thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return set;
+	}
+
+	private static void insert(Sleeper sleeper) {
+		if (numSleeping == sleeping.length)
+			sleeping = Arrays.copyOf(sleeping, sleeping.length * 2);
+
+		sleeper.index = numSleeping++;
+		sleeping[sleeper.index] = sleeper;
+		siftUp(sleeper.index);
 	}
 
+	private static void remove(Sleeper sleeper) {
+		int index = sleeper.index;
+		Sleeper last = sleeping[--numSleeping];
+		sleeping[numSleeping] = null;
+		sleeper.index = -1;
+
+		if (last == sleeper)
+			return;
+
+		sleeping[index] = last;
+		last.index = index;
+		siftUp(index);
+		siftDown(last.index);
+	}
+
+	private static void siftUp(int index) {
+		Sleeper sleeper = sleeping[index];
+
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!sleeping[parent].after(sleeper))
+				break;
+
+			sleeping[index] = sleeping[parent];
+			sleeping[index].index = index;
+			index = parent;
+		}
+
+		sleeping[index] = sleeper;
+		sleeper.index = index;
+	}
+
+	private static void siftDown(int index) {
+		Sleeper sleeper = sleeping[index];
+
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= numSleeping)
+				break;
+			if (child + 1 < numSleeping && sleeping[child].after(sleeping[child + 1]))
+				child++;
+			if (!sleeper.after(sleeping[child]))
+				break;
+
+			sleeping[index] = sleeping[child];
+			sleeping[index].index = index;
+			index = child;
+		}
+
+		sleeping[index] = sleeper;
+		sleeper.index = index;
+	}
+
+	/**
+	 * A thread's entry in the heap of sleeping threads. It is allocated the
+	 * first time the thread sleeps, and reused after that.
+	 */
+	static class Sleeper {
+		Sleeper(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Test whether this sleeper should wake up after another one.
+		 */
+		boolean after(Sleeper other) {
+			if (wakeTime != other.wakeTime)
+				return wakeTime > other.wakeTime;
+			return arrival > other.arrival;
+		}
+
+		private KThread thread;
+
+		private long wakeTime;
+
+		private long arrival;
+
+		/** The position in the heap, or -1 if no timer is set. */
+		private int index = -1;
+	}
+
+	private static Sleeper[] sleeping = new Sleeper[16];
+
+	private static int numSleeping = 0;
+
+	private static long numArrivals = 0;
 
     // Add Alarm testing code to the Alarm class
     
@@ -8,6 +8,13 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * Speakers take turns: one speaker at a time offers its words, and listeners
+ * take them in order until they are all gone. A speaker can offer many words
+ * at once with <tt>speakAll()</tt>, and a listener can take as many as fit in
+ * its buffer with <tt>listenInto()</tt>, so a producer and consumer moving a
+ * stream of words pay for one lock handoff per batch rather than per word.
  */
 public class Communicator {
 	/**
@@ -19,23 +26,181 @@ public class Communicator {
 	/**
 	 * Wait for a thread to listen through this communicator, and then transfer
 	 * <i>word</i> to the listener.
-	 * 
+	 *
 	 * <p>
 	 * Does not return until this thread is paired up with a listening thread.
 	 * Exactly one listener should receive <i>word</i>.
-	 * 
+	 *
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		lock.acquire();
+
+		waitForTurn();
+		oneWord[0] = word;
+		offer(oneWord);
+
+		lock.release();
+	}
+
+	/**
+	 * Transfer every word in an array, in order, to listening threads.
+	 *
+	 * <p>
+	 * Does not return until listeners have received all of the words. No other
+	 * speaker's words are transferred in between, though the words may be
+	 * split among several listeners.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		if (words.length == 0)
+			return;
+
+		lock.acquire();
+
+		waitForTurn();
+		offer(words);
+
+		lock.release();
 	}
 
 	/**
 	 * Wait for a thread to speak through this communicator, and then return the
 	 * <i>word</i> that thread passed to <tt>speak()</tt>.
-	 * 
+	 *
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		return 0;
+		lock.acquire();
+
+		waitForWords();
+		int word = words[next++];
+		taken();
+
+		lock.release();
+
+		return word;
 	}
+
+	/**
+	 * Wait for a thread to speak through this communicator, and then receive as
+	 * many of its words as are left and fit in <i>buffer</i>, in order.
+	 *
+	 * @param buffer where to store the words received.
+	 * @return the number of words received, at least 1 unless <i>buffer</i> is
+	 * empty.
+	 */
+	public int listenInto(int[] buffer) {
+		if (buffer.length == 0)
+			return 0;
+
+		lock.acquire();
+
+		waitForWords();
+		int amount = Math.min(buffer.length, end - next);
+		System.arraycopy(words, next, buffer, 0, amount);
+		next += amount;
+		taken();
+
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Wait until no other speaker is offering words.
+	 */
+	private void waitForTurn() {
+		while (words != null)
+			speakers.sleep();
+	}
+
+	/**
+	 * Offer words to listeners and wait until they have all been taken, then
+	 * let the next speaker have its turn.
+	 */
+	private void offer(int[] words) {
+		this.words = words;
+		next = 0;
+		end = words.length;
+
+		listeners.wake();
+		while (next < end)
+			delivered.sleep();
+
+		this.words = null;
+		speakers.wake();
+	}
+
+	/**
+	 * Wait until the current speaker has words left.
+	 */
+	private void waitForWords() {
+		while (words == null || next == end)
+			listeners.sleep();
+	}
+
+	/**
+	 * Tell the speaker if its last word is gone, or else let another listener
+	 * take the rest.
+	 */
+	private void taken() {
+		if (next == end)
+			delivered.wake();
+		else
+			listeners.wake();
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		final Communicator communicator = new Communicator();
+		final int[] stream = new int[100];
+		for (int i = 0; i < stream.length; i++)
+			stream[i] = i;
+
+		KThread speaker = new KThread(new Runnable() {
+			public void run() {
+				communicator.speakAll(stream);
+				communicator.speak(-1);
+			}
+		}).setName("speaker");
+		speaker.fork();
+
+		int[] buffer = new int[7];
+		int received = 0;
+		while (received < stream.length) {
+			int amount = communicator.listenInto(buffer);
+			for (int i = 0; i < amount; i++)
+				Lib.assertTrue(buffer[i] == received + i);
+			received += amount;
+		}
+		Lib.assertTrue(communicator.listen() == -1);
+
+		speaker.join();
+		System.out.println("Communicator.selfTest: received " + received
+				+ " words in order");
+	}
+
+	private Lock lock = new Lock();
+
+	/** Where speakers wait for their turn. */
+	private Condition2 speakers = new Condition2(lock);
+
+	/** Where listeners wait for words. */
+	private Condition2 listeners = new Condition2(lock);
+
+	/** Where the current speaker waits for its words to be taken. */
+	private Condition2 delivered = new Condition2(lock);
+
+	/** The current speaker's words, or <tt>null</tt> if there is none. */
+	private int[] words = null;
+
+	/** The next word to take, and the end of the current speaker's words. */
+	private int next, end;
+
+	/** Holds the word of <tt>speak()</tt>, which only the current speaker uses. */
+	private int[] oneWord = new int[1];
 }
@@ -49,6 +49,16 @@ import java.util.LinkedList;
  * acquire the lock and change data structures, before the woken thread gets a
  * chance to run. The advance to Mesa-style semantics is that it is a lot easier
  * to implement.
+ *
+ * <p>
+ * Setting <tt>Condition.waitMorphing</tt> changes how woken threads get the
+ * lock back. Instead of being readied only to block again in
+ * <tt>acquire()</tt> while the waker still holds the lock, a woken thread is
+ * moved straight onto the lock's wait queue, and is readied by
+ * <tt>Lock.release()</tt> when the lock is handed to it. A <tt>wakeAll()</tt>
+ * then costs one context switch per thread that actually gets the lock. The
+ * semantics are still Mesa-style, since the woken thread runs after its waker
+ * releases the lock and possibly after other threads have held it.
  */
 public class Condition {
 	/**
@@ -61,7 +71,26 @@ public class Condition {
 	public Condition(Lock conditionLock) {
 		this.conditionLock = conditionLock;
 
-		waitQueue = new LinkedList<Semaphore>();
+		waitMorphing = Config.getBoolean("Condition.waitMorphing", false);
+		if (waitMorphing)
+			sleepers = ThreadedKernel.scheduler.newThreadQueue(false);
+		else
+			waitQueue = new LinkedList<Semaphore>();
+
+		profile = ContentionProfiler.newRecord("Condition");
+	}
+
+	/**
+	 * Set the name this condition variable is reported under by the contention
+	 * profiler.
+	 *
+	 * @param name the name to give to this condition variable.
+	 * @return this condition variable.
+	 */
+	public Condition setName(String name) {
+		if (profile != null)
+			profile.name = name;
+		return this;
 	}
 
 	/**
@@ -74,17 +103,36 @@ public class Condition {
 	 * This implementation uses semaphores to implement this, by allocating a
 	 * semaphore for each waiting thread. The waker will <tt>V()</tt> this
 	 * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-	 * though the lock is released before caling <tt>P()</tt>.
+	 * though the lock is released before caling <tt>P()</tt>. With wait
+	 * morphing, sleeping threads wait on a thread queue instead, and their
+	 * waker hands them to the lock.
 	 */
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		Semaphore waiter = new Semaphore(0);
-		waitQueue.add(waiter);
+		long waitStart = (profile != null) ? Machine.timer().getTime() : -1;
+
+		if (waitMorphing) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			sleepers.waitForAccess(KThread.currentThread());
+			conditionLock.release();
+			KThread.sleep();
+
+			Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+			Machine.interrupt().restore(intStatus);
+		}
+		else {
+			Semaphore waiter = new Semaphore(0, false);
+			waitQueue.add(waiter);
+
+			conditionLock.release();
+			waiter.P();
+			conditionLock.acquire();
+		}
 
-		conditionLock.release();
-		waiter.P();
-		conditionLock.acquire();
+		if (profile != null)
+			profile.acquired(waitStart);
 	}
 
 	/**
@@ -94,6 +142,17 @@ public class Condition {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		if (waitMorphing) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			KThread thread = sleepers.nextThread();
+			if (thread != null)
+				conditionLock.requeue(thread);
+
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
 		if (!waitQueue.isEmpty())
 			((Semaphore) waitQueue.removeFirst()).V();
 	}
@@ -105,6 +164,17 @@ public class Condition {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		if (waitMorphing) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			KThread thread;
+			while ((thread = sleepers.nextThread()) != null)
+				conditionLock.requeue(thread);
+
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
 		while (!waitQueue.isEmpty())
 			wake();
 	}
@@ -112,4 +182,12 @@ public class Condition {
 	private Lock conditionLock;
 
 	private LinkedList<Semaphore> waitQueue;
+
+	private boolean waitMorphing;
+
+	/** The sleeping threads, when wait morphing. */
+	private ThreadQueue sleepers;
+
+	/** Contention counters, or <tt>null</tt> if profiling is off. */
+	private ContentionProfiler.Record profile;
 }
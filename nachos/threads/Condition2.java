@@ -7,7 +7,13 @@ import nachos.machine.*;
  * synchronization.
  * 
  * <p>
- * You must implement this.
+ * If <tt>Condition.waitMorphing</tt> is set, a thread woken from
+ * <tt>sleep()</tt> is moved straight onto the lock's wait queue instead of
+ * being readied, since it would only block again trying to reacquire the lock
+ * its waker still holds. It is readied by <tt>Lock.release()</tt> when its turn
+ * for the lock comes, so <tt>wakeAll()</tt> readies one thread at a time rather
+ * than all of them at once. Threads in <tt>sleepFor()</tt> are readied as
+ * usual, because they must also be able to wake up on their own.
  * 
  * @see nachos.threads.Condition
  */
@@ -22,6 +28,21 @@ public class Condition2 {
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
 		this.alarm = new Alarm();
+		this.waitMorphing = Config.getBoolean("Condition.waitMorphing", false);
+		this.profile = ContentionProfiler.newRecord("Condition2");
+	}
+
+	/**
+	 * Set the name this condition variable is reported under by the contention
+	 * profiler.
+	 *
+	 * @param name the name to give to this condition variable.
+	 * @return this condition variable.
+	 */
+	public Condition2 setName(String name) {
+		if (profile != null)
+			profile.name = name;
+		return this;
 	}
 
 	/**
@@ -36,14 +57,18 @@ public class Condition2 {
 		boolean intStatus = Machine.interrupt().disable();
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		
+		long waitStart = (profile != null) ? Machine.timer().getTime() : -1;
 		waitQueue.waitForAccess(KThread.currentThread());
 		
 		conditionLock.release();
 		KThread.sleep();	
 	
-		
-		conditionLock.acquire();
+		// a morphed wake-up hands us the lock
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
+
+		if (profile != null)
+			profile.acquired(waitStart);
 	
 		Machine.interrupt().restore(intStatus);
 		
@@ -58,10 +83,8 @@ public class Condition2 {
 	
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = waitQueue.nextThread();
-		if(thread != null){
-			if (!alarm.cancel(thread))
-				thread.ready();
-		}
+		if(thread != null)
+			wake(thread);
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -75,14 +98,27 @@ public class Condition2 {
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = waitQueue.nextThread();
 		while (thread !=null){
-			if (!alarm.cancel(thread))
-				thread.ready();
+			wake(thread);
 			thread = waitQueue.nextThread();
 		}
 		Machine.interrupt().restore(intStatus);
 
 	}
 
+	/**
+	 * Wake a thread taken off the wait queue: cancel its timer if it is in
+	 * <tt>sleepFor()</tt>, or else ready it or queue it for the lock.
+	 */
+	private void wake(KThread thread) {
+		if (alarm.cancel(thread))
+			return;
+
+		if (waitMorphing)
+			conditionLock.requeue(thread);
+		else
+			thread.ready();
+	}
+
         /**
 	 * Atomically release the associated lock and go to sleep on
 	 * this condition variable until either (1) another thread
@@ -95,6 +131,7 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
 
+		long waitStart = (profile != null) ? Machine.timer().getTime() : -1;
 		waitQueue.waitForAccess(KThread.currentThread());
 		
 		conditionLock.release();
@@ -102,6 +139,9 @@ public class Condition2 {
 	
 		
 		conditionLock.acquire();
+
+		if (profile != null)
+			profile.acquired(waitStart);
 	
 		Machine.interrupt().restore(intStatus);
 
@@ -111,6 +151,8 @@ public class Condition2 {
 	
 	private Alarm alarm;
         private Lock conditionLock;
+	private boolean waitMorphing;
+	private ContentionProfiler.Record profile;
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	private static class InterlockTest {
 
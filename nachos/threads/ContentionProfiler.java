@@ -0,0 +1,195 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Records how contended each lock, semaphore and condition variable is, so
+ * that the bottleneck can be found. Profiling is off unless
+ * <tt>ContentionProfiler.enabled</tt> is set, and then the kernel prints a
+ * report when it terminates, ranked by the total time threads spent waiting.
+ *
+ * <p>
+ * Every primitive created while profiling is on gets a <tt>Record</tt> of its
+ * acquisitions, how many of them had to wait, how long they waited, and, for
+ * locks, how long the lock was held. For a semaphore an acquisition is a
+ * <tt>P()</tt>; for a condition variable it is a <tt>sleep()</tt>, which
+ * always waits. A primitive is named after the place it was allocated unless
+ * it is given a name with <tt>setName()</tt>, and the report adds up records
+ * with the same kind and name, so for instance all the per-process locks
+ * allocated in one constructor show up as one line.
+ */
+public class ContentionProfiler {
+	private ContentionProfiler() {
+	}
+
+	/**
+	 * Test whether profiling is on.
+	 *
+	 * @return <tt>true</tt> if primitives should record their contention.
+	 */
+	public static boolean enabled() {
+		if (enabled == null)
+			enabled = Boolean.valueOf(Config.getBoolean(
+					"ContentionProfiler.enabled", false));
+
+		return enabled.booleanValue();
+	}
+
+	/**
+	 * Return a new record for a primitive, or <tt>null</tt> if profiling is
+	 * off.
+	 *
+	 * @param kind the kind of primitive, such as <tt>"Lock"</tt>.
+	 * @return the record the primitive should update.
+	 */
+	static Record newRecord(String kind) {
+		if (!enabled())
+			return null;
+
+		Record record = new Record(kind, allocationSite());
+		records.add(record);
+		return record;
+	}
+
+	/**
+	 * Return where the primitive being constructed was allocated: the first
+	 * stack frame outside this package's primitives.
+	 */
+	private static String allocationSite() {
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+
+		for (int i = 0; i < stack.length; i++) {
+			String className = stack[i].getClassName();
+			if (!className.equals(ContentionProfiler.class.getName())
+					&& !isPrimitive(className)) {
+				return className.substring(className.lastIndexOf('.') + 1)
+						+ "." + stack[i].getMethodName() + ":"
+						+ stack[i].getLineNumber();
+			}
+		}
+
+		return "(unknown)";
+	}
+
+	private static boolean isPrimitive(String className) {
+		return className.equals(Lock.class.getName())
+				|| className.equals(AdaptiveLock.class.getName())
+				|| className.equals(Semaphore.class.getName())
+				|| className.equals(Condition.class.getName())
+				|| className.equals(Condition2.class.getName());
+	}
+
+	/**
+	 * Print the records, added up by kind and name, in decreasing order of
+	 * total wait time. Does nothing if profiling is off.
+	 */
+	public static void print() {
+		if (!enabled())
+			return;
+
+		HashMap<String, Record> totals = new HashMap<String, Record>();
+		for (Record record : records) {
+			String key = record.kind + " " + record.name;
+
+			Record total = totals.get(key);
+			if (total == null) {
+				total = new Record(record.kind, record.name);
+				totals.put(key, total);
+			}
+			total.add(record);
+		}
+
+		Record[] ranked = totals.values().toArray(new Record[0]);
+		Arrays.sort(ranked, new Comparator<Record>() {
+			public int compare(Record a, Record b) {
+				if (a.waitTicks != b.waitTicks)
+					return (a.waitTicks > b.waitTicks) ? -1 : 1;
+				if (a.acquires != b.acquires)
+					return (a.acquires > b.acquires) ? -1 : 1;
+				return (a.kind + a.name).compareTo(b.kind + b.name);
+			}
+		});
+
+		System.out.println("Contention (" + records.size() + " primitives):");
+		System.out.println(String.format("  %-12s %-36s %9s %9s %11s %9s %11s",
+				"kind", "name", "acquires", "waited", "wait ticks",
+				"max wait", "hold ticks"));
+		for (int i = 0; i < ranked.length; i++) {
+			Record r = ranked[i];
+			if (r.acquires == 0)
+				continue;
+
+			System.out.println(String.format(
+					"  %-12s %-36s %9d %9d %11d %9d %11s", r.kind, r.name,
+					r.acquires, r.contended, r.waitTicks, r.maxWait,
+					r.kind.endsWith("Lock") ? Long.toString(r.holdTicks) : "-"));
+		}
+	}
+
+	/**
+	 * The contention counters of one primitive. The primitive updates them
+	 * with interrupts disabled.
+	 */
+	static class Record {
+		Record(String kind, String name) {
+			this.kind = kind;
+			this.name = name;
+		}
+
+		/**
+		 * Count an acquisition that waited from <i>start</i> until now, or did
+		 * not wait if <i>start</i> is negative.
+		 */
+		void acquired(long start) {
+			acquires++;
+
+			if (start >= 0) {
+				long wait = Machine.timer().getTime() - start;
+
+				contended++;
+				waitTicks += wait;
+				if (wait > maxWait)
+					maxWait = wait;
+			}
+		}
+
+		/**
+		 * Note that a lock was just taken.
+		 */
+		void held() {
+			holdStart = Machine.timer().getTime();
+		}
+
+		/**
+		 * Note that a lock is being released.
+		 */
+		void released() {
+			holdTicks += Machine.timer().getTime() - holdStart;
+		}
+
+		private void add(Record record) {
+			acquires += record.acquires;
+			contended += record.contended;
+			waitTicks += record.waitTicks;
+			holdTicks += record.holdTicks;
+			maxWait = Math.max(maxWait, record.maxWait);
+		}
+
+		String kind, name;
+
+		long acquires = 0, contended = 0;
+
+		long waitTicks = 0, maxWait = 0, holdTicks = 0;
+
+		private long holdStart = 0;
+	}
+
+	private static Boolean enabled = null;
+
+	private static ArrayList<Record> records = new ArrayList<Record>();
+}
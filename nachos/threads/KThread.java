@@ -195,10 +195,11 @@ public class KThread {
 	public static void finish() {
 		Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
 		boolean intStatus = Machine.interrupt().disable();
-		if(currentThread.toBeWakeUpAfter != null)
-			currentThread.toBeWakeUpAfter.ready();
 		Machine.interrupt().restore(intStatus);
 		Machine.interrupt().disable();
+		// no preemption from here on, or a join() could miss the wakeup
+		if(currentThread.toBeWakeUpAfter != null)
+			currentThread.toBeWakeUpAfter.ready();
 
 		Machine.autoGrader().finishingCurrentThread();
 
@@ -238,6 +239,10 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		// only an interrupt can give the idle thread's loop anything to do
+		if (intStatus && currentThread == idleThread && numReady == 0)
+			Machine.interrupt().idle();
+
 		currentThread.ready();
 
 		runNextThread();
@@ -278,8 +283,10 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -298,6 +305,7 @@ public class KThread {
 		boolean status_1 = Machine.interrupt().disable();
 		//cuur is A. on A calls B.join()
 		if (this.status == statusFinished) {
+			Machine.interrupt().restore(status_1);
 			return;
 		}
 		else {
@@ -345,6 +353,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReady--;
 
 		nextThread.run();
 	}
@@ -454,6 +464,9 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/** This thread's entry in the alarm's heap of sleeping threads. */
+	Alarm.Sleeper alarmSleeper = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -488,6 +501,9 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	/** Number of threads waiting in <tt>readyQueue</tt>. */
+	private static int numReady = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
@@ -23,6 +23,21 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		profile = ContentionProfiler.newRecord(getClass().getSimpleName());
+	}
+
+	/**
+	 * Set the name this lock is reported under by the contention profiler,
+	 * and by <tt>AdaptiveLock.print()</tt>.
+	 *
+	 * @param name the name to give to this lock.
+	 * @return this lock.
+	 */
+	public Lock setName(String name) {
+		this.name = name;
+		if (profile != null)
+			profile.name = name;
+		return this;
 	}
 
 	/**
@@ -30,12 +45,26 @@ public class Lock {
 	 * this lock.
 	 */
 	public void acquire() {
+		acquire(-1);
+	}
+
+	/**
+	 * Atomically acquire this lock, telling the contention profiler that the
+	 * current thread has been waiting for it since <i>waitStart</i>, or, if
+	 * that is negative, only if it has to wait here.
+	 *
+	 * @param waitStart when the current thread started waiting, or -1.
+	 */
+	void acquire(long waitStart) {
 		Lib.assertTrue(!isHeldByCurrentThread());
 
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			if (profile != null && waitStart < 0)
+				waitStart = Machine.timer().getTime();
+
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
 		}
@@ -46,7 +75,40 @@ public class Lock {
 
 		Lib.assertTrue(lockHolder == thread);
 
+		if (profile != null) {
+			profile.acquired(waitStart);
+			profile.held();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock if it is free, without waiting. The current thread must
+	 * not already hold this lock.
+	 *
+	 * @param waitStart when the current thread started waiting for this lock,
+	 * for the contention profiler, or -1 if it has not waited.
+	 * @return <tt>true</tt> if the current thread now holds this lock.
+	 */
+	boolean tryAcquire(long waitStart) {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean acquired = (lockHolder == null);
+		if (acquired) {
+			lockHolder = KThread.currentThread();
+			waitQueue.acquire(lockHolder);
+
+			if (profile != null) {
+				profile.acquired(waitStart);
+				profile.held();
+			}
+		}
+
 		Machine.interrupt().restore(intStatus);
+		return acquired;
 	}
 
 	/**
@@ -57,12 +119,36 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
+		if (profile != null)
+			profile.released();
+
+		if ((lockHolder = waitQueue.nextThread()) != null) {
 			lockHolder.ready();
 
+			// held from now on, even by a thread handed the lock by a condition
+			if (profile != null)
+				profile.held();
+		}
+
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Queue a blocked thread for this lock without readying it. The thread
+	 * will be readied, already holding the lock, when it reaches the front of
+	 * the queue and the lock is released. The current thread must hold this
+	 * lock. Condition variables use this to move woken threads straight onto
+	 * the lock's wait queue.
+	 *
+	 * @param thread the blocked thread to queue.
+	 */
+	void requeue(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(isHeldByCurrentThread());
+
+		waitQueue.waitForAccess(thread);
+	}
+
 	/**
 	 * Test if the current thread holds this lock.
 	 * 
@@ -74,6 +160,12 @@ public class Lock {
 
 	private KThread lockHolder = null;
 
+	/** The name given with <tt>setName()</tt>, if any. */
+	String name = null;
+
+	/** Contention counters, or <tt>null</tt> if profiling is off. */
+	private ContentionProfiler.Record profile;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
 }
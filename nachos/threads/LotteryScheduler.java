@@ -8,18 +8,18 @@ import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
@@ -35,13 +35,446 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
 	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).tickets;
+	}
+
+	/**
+	 * Return the number of tickets the thread holds, counting those donated
+	 * to it. The true count can exceed the range of an <tt>int</tt>, in which
+	 * case this returns <tt>Integer.MAX_VALUE</tt>.
+	 */
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long effective = getLotteryState(thread).effectiveTickets;
+		return (int) Math.min(effective, Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test the lottery. Three threads holding 1, 3 and 6 tickets wait on the
+	 * same queue over and over; each must win roughly in proportion to its
+	 * tickets. Then check that tickets are added up through a lock. Must be
+	 * run with <tt>ThreadedKernel.scheduler</tt> set to this class.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[3];
+		int[] tickets = { 1, 3, 6 };
+		int[] wins = new int[3];
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread(null).setName("lottery " + i);
+			ThreadedKernel.scheduler.setPriority(threads[i], tickets[i]);
+		}
+
+		int draws = 10000;
+		for (int n = 0; n < draws; n++) {
+			for (int i = 0; i < threads.length; i++)
+				queue.waitForAccess(threads[i]);
+
+			KThread winner = queue.nextThread();
+			for (int i = 0; i < threads.length; i++) {
+				if (winner == threads[i])
+					wins[i]++;
+			}
+
+			while (queue.nextThread() != null)
+				;
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			System.out.println("LotteryScheduler: " + tickets[i]
+					+ " tickets won " + wins[i] + " of " + draws);
+			Lib.assertTrue(Math.abs(wins[i] - draws * tickets[i] / 10) < draws / 20);
+		}
+
+		// a holder of 1 ticket gets the 3 + 6 tickets of two waiters
+		ThreadQueue lock = ThreadedKernel.scheduler.newThreadQueue(true);
+		lock.acquire(threads[0]);
+		lock.waitForAccess(threads[1]);
+		lock.waitForAccess(threads[2]);
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == 10);
+
+		// the winner inherits what is still waiting
+		KThread next = lock.nextThread();
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == 1);
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(next) == 9);
+
+		lock.nextThread();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The fewest tickets a thread can hold. Do not change this value.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The most tickets a thread can hold. Do not change this value.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 *
+	 * <p>
+	 * Every waiting thread occupies a slot, and the slots' ticket counts are
+	 * kept in a Fenwick tree. Both drawing a winner, which walks down the tree
+	 * to the slot holding the winning ticket, and changing one thread's
+	 * tickets are O(log n). Slots given up by leaving threads are reused.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0)
+				return null;
+
+			LotteryState winner = slots[draw()];
+			winner.acquire(this);
+
+			return winner.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ("
+							+ slots[i].effectiveTickets + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Return the slot holding a ticket chosen uniformly at random from
+		 * all the tickets in this queue.
+		 */
+		private int draw() {
+			long ticket;
+			if (total <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) total);
+			else
+				ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			// find the first slot whose prefix sum exceeds the ticket
+			int index = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (index + step <= slots.length && tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			Lib.assertTrue(slots[index] != null);
+			return index;
+		}
+
+		void add(LotteryState state) {
+			if (numFree == 0)
+				grow();
+
+			int slot = free[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+			size++;
+
+			update(slot, state.effectiveTickets);
+		}
+
+		void remove(LotteryState state) {
+			int slot = state.slot;
+			Lib.assertTrue(slots[slot] == state);
+
+			update(slot, -state.effectiveTickets);
+
+			slots[slot] = null;
+			state.slot = -1;
+			free[numFree++] = slot;
+			size--;
+		}
+
+		/**
+		 * Add <tt>delta</tt> tickets to a slot.
+		 */
+		void update(int slot, long delta) {
+			total += delta;
+
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int capacity = Math.max(8, slots.length * 2);
+
+			LotteryState[] newSlots = new LotteryState[capacity];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+
+			long[] newTree = new long[capacity + 1];
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					newTree[i + 1] = slots[i].effectiveTickets;
+			}
+			for (int i = 1; i <= capacity; i++) {
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					newTree[parent] += newTree[i];
+			}
+
+			// the new slots are all free; hand out the lowest first
+			int[] newFree = new int[capacity];
+			numFree = 0;
+			for (int i = capacity - 1; i >= slots.length; i--)
+				newFree[numFree++] = i;
+
+			slots = newSlots;
+			tree = newTree;
+			free = newFree;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread that holds the resource, if this queue transfers. */
+		LotteryState owner = null;
+
+		/** The number of tickets held by all waiting threads. */
+		long total = 0;
+
+		private int size = 0;
+
+		private LotteryState[] slots = new LotteryState[0];
+
+		/** Fenwick tree over <tt>slots</tt>, indexed from 1. */
+		private long[] tree = new long[1];
+
+		private int[] free = new int[0];
+
+		private int numFree = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under lottery scheduling.
+	 *
+	 * <p>
+	 * A thread's effective tickets are its own plus all the tickets waiting
+	 * on the transferring queues it owns. Since tickets add, every change is a
+	 * delta that can be pushed along the chain of waiting threads and owners
+	 * without recomputing any sums.
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			this.tickets = priorityDefault;
+			this.effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Set the number of tickets the associated thread holds.
+		 *
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			this.tickets = tickets;
+
+			addTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 *
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			// a thread can only wait in one place; forget a stale wait
+			if (waitingOn != null)
+				leave();
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.addTickets(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever
+		 * is guarded by <tt>waitQueue</tt>.
+		 *
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (waitingOn == waitQueue)
+				leave();
+
+			if (!waitQueue.transferPriority)
+				return;
+
+			LotteryState oldOwner = waitQueue.owner;
+			if (oldOwner == this)
+				return;
+
+			if (oldOwner != null)
+				oldOwner.addTickets(-waitQueue.total);
+
+			waitQueue.owner = this;
+			addTickets(waitQueue.total);
+		}
+
+		/**
+		 * Leave the queue this thread is waiting on, taking its tickets along.
+		 */
+		private void leave() {
+			LotteryQueue oldQueue = waitingOn;
+
+			oldQueue.remove(this);
+			waitingOn = null;
+
+			if (oldQueue.transferPriority && oldQueue.owner != null)
+				oldQueue.owner.addTickets(-effectiveTickets);
+		}
+
+		/**
+		 * Add <tt>delta</tt> effective tickets to this thread, and to every
+		 * slot and owner down the chain it waits on. A deadlocked cycle of
+		 * owners is only walked once.
+		 */
+		private void addTickets(long delta) {
+			if (delta == 0)
+				return;
+
+			int walk = ++numWalks;
+			LotteryState state = this;
+
+			while (state != null && state.lastWalk != walk) {
+				state.lastWalk = walk;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.update(state.slot, delta);
+
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets the associated thread holds itself. */
+		protected int tickets;
+
+		/** Its own tickets plus those donated to it. */
+		protected long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitingOn = null;
+
+		int slot = -1;
+
+		private int lastWalk = 0;
+	}
+
+	private int numWalks = 0;
 }
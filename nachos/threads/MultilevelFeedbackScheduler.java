@@ -0,0 +1,323 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread sits at one of
+ * <tt>MultilevelFeedbackScheduler.levels</tt> levels, and the next thread to
+ * receive access is the one that has waited longest at the best (lowest
+ * numbered) level.
+ *
+ * <p>
+ * New threads start at level 0. A thread at level <i>l</i> may run for
+ * 2<sup><i>l</i></sup> timer interrupts, counted across however many times it
+ * blocks or yields, before it drops a level. So CPU-bound threads sink to
+ * the bottom, where they get long quanta, while threads that mostly wait for
+ * I/O stay near the top and are picked first when they wake up. A thread
+ * woken at a better level than the running thread's preempts it at the next
+ * timer interrupt, even if the quantum is not used up. Every
+ * <tt>MultilevelFeedbackScheduler.boostInterval</tt> timer interrupts all
+ * threads go back to level 0, so nothing starves.
+ *
+ * <p>
+ * Each queue keeps a <tt>ThreadList</tt> per level, linked through the threads'
+ * scheduling state, so adding and removing threads allocates nothing and
+ * takes constant time. A boost only bumps an epoch counter; threads and
+ * queues notice it the next time they are touched.
+ */
+public class MultilevelFeedbackScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MultilevelFeedbackScheduler() {
+		numLevels = Config.getInteger("MultilevelFeedbackScheduler.levels", 3);
+		boostInterval = Config.getInteger(
+				"MultilevelFeedbackScheduler.boostInterval", 100);
+
+		Lib.assertTrue(numLevels >= 1 && numLevels <= maxLevels);
+		Lib.assertTrue(boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority ignored. Levels are not donated.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread, counted so that the top
+	 * level has the highest priority.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Charge the current thread one timer interrupt. It yields when it has
+	 * used up its quantum, and then it also drops a level, or when a thread
+	 * at a better level has been woken since the last timer interrupt.
+	 *
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (++numTimerInterrupts % boostInterval == 0)
+			epoch++;
+
+		boolean preempt = preemptPending;
+		preemptPending = false;
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		state.refresh();
+
+		if (++state.used < (1 << state.level))
+			return preempt;
+
+		if (state.level < numLevels - 1)
+			state.level++;
+		state.used = 0;
+
+		return true;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Test demotion and the periodic boost. Starting just after a boost, the
+	 * current thread must drop a level exactly when it has used up each
+	 * quantum, and a thread woken at a better level must preempt it. A queue
+	 * must skip a level whose only thread has moved to another queue. Then a
+	 * thread left waiting at the bottom level must be back at level 0, ahead
+	 * of a thread queued after the next boost. Must be run with
+	 * <tt>ThreadedKernel.scheduler</tt> set to this class, with at least two
+	 * levels.
+	 */
+	public static void selfTest() {
+		MultilevelFeedbackScheduler scheduler =
+				(MultilevelFeedbackScheduler) ThreadedKernel.scheduler;
+		int numLevels = scheduler.numLevels;
+		Lib.assertTrue(numLevels >= 2
+				&& (1 << (numLevels - 1)) < scheduler.boostInterval);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadState self = scheduler.getThreadState(KThread.currentThread());
+
+		// the interrupt that boosts also uses up the quantum at level 0
+		while ((scheduler.numTimerInterrupts + 1) % scheduler.boostInterval != 0)
+			scheduler.timerInterrupt();
+
+		for (int level = 0; level < numLevels - 1; level++) {
+			for (int used = 1; used < (1 << level); used++) {
+				Lib.assertTrue(!scheduler.timerInterrupt());
+				Lib.assertTrue(self.getLevel() == level);
+			}
+
+			Lib.assertTrue(scheduler.timerInterrupt());
+			Lib.assertTrue(self.getLevel() == level + 1);
+		}
+
+		// a thread woken at level 0 goes first and preempts
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread woken = new KThread(null).setName("woken");
+		queue.waitForAccess(KThread.currentThread());
+		queue.waitForAccess(woken);
+		Lib.assertTrue(scheduler.timerInterrupt());
+		Lib.assertTrue(queue.nextThread() == woken);
+		Lib.assertTrue(queue.nextThread() == KThread.currentThread());
+
+		// a thread that moves to another queue leaves a stale bit behind
+		KThread moved = new KThread(null).setName("moved");
+		scheduler.getThreadState(moved).level = numLevels - 1;
+		queue.waitForAccess(moved);
+		scheduler.newThreadQueue(false).waitForAccess(moved);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		KThread sunk = new KThread(null).setName("sunk");
+		scheduler.getThreadState(sunk).level = numLevels - 1;
+		queue.waitForAccess(sunk);
+
+		while (scheduler.numTimerInterrupts % scheduler.boostInterval != 0)
+			scheduler.timerInterrupt();
+
+		KThread fresh = new KThread(null).setName("fresh");
+		queue.waitForAccess(fresh);
+		Lib.assertTrue(scheduler.getThreadState(sunk).getLevel() == 0);
+		Lib.assertTrue(queue.nextThread() == sunk);
+		Lib.assertTrue(queue.nextThread() == fresh);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("MultilevelFeedbackScheduler: demotion and boost ok");
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list for each level.
+	 */
+	protected class FeedbackQueue extends ThreadQueue {
+		FeedbackQueue() {
+			levels = new ThreadList[numLevels];
+			for (int level = 0; level < numLevels; level++)
+				levels[level] = new ThreadList();
+			queueEpoch = epoch;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			refresh();
+			state.refresh();
+
+			int level = state.level;
+
+			// only a thread being woken is queued by someone else
+			if (thread != KThread.currentThread()
+					&& level < getThreadState(KThread.currentThread()).getLevel())
+				preemptPending = true;
+
+			// this also forgets a stale wait on another queue
+			levels[level].add(state);
+			nonEmpty |= 1 << level;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			refresh();
+
+			// a bit can be left set by a thread taken off by another queue
+			while (nonEmpty != 0) {
+				int level = Integer.numberOfTrailingZeros(nonEmpty);
+				if (!levels[level].isEmpty())
+					return levels[level].removeFirst().getThread();
+
+				nonEmpty &= ~(1 << level);
+			}
+
+			return null;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			refresh();
+			for (int level = 0; level < numLevels; level++) {
+				for (ThreadList.Link link = levels[level].first(); link != null; link = link
+						.getNext())
+					System.out.print(link.getThread() + " (" + level + ") ");
+			}
+		}
+
+		/**
+		 * Catch up with any boost since this queue was last touched by moving
+		 * every lower level, in order, onto the end of level 0.
+		 */
+		private void refresh() {
+			if (queueEpoch == epoch)
+				return;
+			queueEpoch = epoch;
+
+			for (int level = 1; level < numLevels; level++)
+				levels[0].append(levels[level]);
+
+			nonEmpty = levels[0].isEmpty() ? 0 : 1;
+		}
+
+		private ThreadList[] levels;
+
+		/** Bit <i>l</i> is set if level <i>l</i> may have any threads. */
+		private int nonEmpty = 0;
+
+		private int queueEpoch;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, how much of its quantum
+	 * it has used, and its links in the queue it is waiting on.
+	 */
+	protected class ThreadState extends ThreadList.Link {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			super(thread);
+			this.stateEpoch = epoch;
+		}
+
+		/**
+		 * Return the level of the associated thread.
+		 *
+		 * @return the level of the associated thread.
+		 */
+		public int getLevel() {
+			refresh();
+			return level;
+		}
+
+		/**
+		 * Go back to the top level if there has been a boost since this state
+		 * was last touched.
+		 */
+		void refresh() {
+			if (stateEpoch == epoch)
+				return;
+
+			stateEpoch = epoch;
+			level = 0;
+			used = 0;
+		}
+
+		int level = 0;
+
+		/** Timer interrupts used at this level. */
+		int used = 0;
+
+		private int stateEpoch;
+	}
+
+	private int numLevels;
+
+	private int boostInterval;
+
+	private long numTimerInterrupts = 0;
+
+	/** Set when a thread is woken at a better level than the current one. */
+	private boolean preemptPending = false;
+
+	/** Incremented by every boost. */
+	private int epoch = 0;
+
+	private static final int maxLevels = 16;
+}
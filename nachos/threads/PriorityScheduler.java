@@ -2,9 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -97,6 +97,79 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test priority donation through a lock. A low-priority thread holds a
+	 * lock that a high-priority thread wants, while a medium-priority thread
+	 * is ready to run. Only if the high thread's priority is donated does the
+	 * low thread run, and release the lock, before the medium thread. Must be
+	 * run with <tt>ThreadedKernel.scheduler</tt> set to this class.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+		final Semaphore go = new Semaphore(0);
+		final StringBuffer order = new StringBuffer();
+
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				go.P();
+				order.append("low ");
+				lock.release();
+			}
+		}).setName("low");
+		KThread mid = new KThread(new Runnable() {
+			public void run() {
+				order.append("mid ");
+			}
+		}).setName("mid");
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				order.append("high ");
+				lock.release();
+			}
+		}).setName("high");
+
+		KThread self = KThread.currentThread();
+		int oldPriority = selfTestPriority(self, priorityMaximum);
+
+		// let low take the lock, then let high block on it
+		selfTestPriority(low, 2);
+		low.fork();
+		selfTestPriority(self, priorityMinimum);
+		KThread.yield();
+
+		selfTestPriority(self, priorityMaximum);
+		selfTestPriority(high, 6);
+		high.fork();
+		selfTestPriority(self, priorityMinimum);
+		KThread.yield();
+
+		selfTestPriority(self, priorityMaximum);
+		selfTestPriority(mid, 4);
+		mid.fork();
+		go.V();
+
+		mid.join();
+		high.join();
+		low.join();
+
+		selfTestPriority(self, oldPriority);
+
+		System.out.println("PriorityScheduler: " + order);
+		Lib.assertTrue(order.toString().equals("low high mid "));
+	}
+
+	private static int selfTestPriority(KThread thread, int priority) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int oldPriority = ThreadedKernel.scheduler.getPriority(thread);
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+
+		Machine.interrupt().restore(intStatus);
+		return oldPriority;
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -127,6 +200,14 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * The waiting threads are kept in a binary max-heap ordered by effective
+	 * priority and then by arrival, so that <tt>nextThread()</tt> is O(log n)
+	 * and threads of equal priority leave in FIFO order. Each
+	 * <tt>ThreadState</tt> remembers its index in the heap of the queue it is
+	 * waiting on, so a waiter whose effective priority changes can be moved in
+	 * O(log n) as well.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +226,14 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +243,119 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size == 0) ? null : heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			ThreadState[] waiting = new ThreadState[size];
+			System.arraycopy(heap, 0, waiting, 0, size);
+			Arrays.sort(waiting, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return before(a, b) ? -1 : (before(b, a) ? 1 : 0);
+				}
+			});
+
+			for (int i = 0; i < waiting.length; i++)
+				System.out.print(waiting[i].thread + " ("
+						+ waiting[i].effectivePriority + ") ");
+			System.out.println();
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner: the highest
+		 * effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if nothing is donated.
+		 */
+		int donation() {
+			if (!transferPriority || size == 0)
+				return priorityMinimum;
+
+			return heap[0].effectivePriority;
+		}
+
+		void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] grown = new ThreadState[heap.length * 2];
+				System.arraycopy(heap, 0, grown, 0, size);
+				heap = grown;
+			}
+
+			state.arrival = numArrivals++;
+			state.heapIndex = size;
+			heap[size++] = state;
+			siftUp(state.heapIndex);
+		}
+
+		void remove(ThreadState state) {
+			int index = state.heapIndex;
+			Lib.assertTrue(heap[index] == state);
+
+			ThreadState last = heap[--size];
+			heap[size] = null;
+			state.heapIndex = -1;
+
+			if (last != state) {
+				heap[index] = last;
+				last.heapIndex = index;
+				siftUp(index);
+				siftDown(last.heapIndex);
+			}
+		}
+
+		/**
+		 * Restore the heap order around a waiter whose effective priority has
+		 * just changed.
+		 */
+		void update(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+
+			return a.arrival < b.arrival;
 		}
 
 		/**
@@ -170,6 +363,15 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that holds the resource, if this queue transfers. */
+		ThreadState owner = null;
+
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+
+		private long numArrivals = 0;
 	}
 
 	/**
@@ -177,6 +379,11 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached. When it changes, the change is pushed
+	 * along the chain of waiting threads and owners one link at a time, and
+	 * stops at the first thread whose effective priority is not affected.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -189,7 +396,8 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);
+			this.priority = priorityDefault;
+			this.effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -207,8 +415,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +429,10 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			if (priority > effectivePriority)
+				changeEffectivePriority(priority);
+			else if (priority < effectivePriority)
+				recomputeEffectivePriority();
 		}
 
 		/**
@@ -238,7 +448,17 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			// a thread can only wait in one place; forget a stale wait
+			if (waitingOn != null)
+				leave();
+
+			waitingOn = waitQueue;
+			int oldDonation = waitQueue.donation();
+			waitQueue.add(this);
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.donationChanged(oldDonation,
+						waitQueue.donation());
 		}
 
 		/**
@@ -252,7 +472,113 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			int oldDonation = waitQueue.donation();
+
+			if (waitingOn == waitQueue) {
+				waitQueue.remove(this);
+				waitingOn = null;
+			}
+
+			if (!waitQueue.transferPriority)
+				return;
+
+			ThreadState oldOwner = waitQueue.owner;
+			if (oldOwner == this) {
+				donationChanged(oldDonation, waitQueue.donation());
+				return;
+			}
+
+			waitQueue.owner = this;
+			owned.add(waitQueue);
+
+			if (oldOwner != null) {
+				oldOwner.owned.remove(waitQueue);
+				oldOwner.donationChanged(oldDonation, priorityMinimum);
+			}
+
+			donationChanged(priorityMinimum, waitQueue.donation());
+		}
+
+		/**
+		 * Leave the queue this thread is waiting on, taking its donation
+		 * along.
+		 */
+		private void leave() {
+			PriorityQueue oldQueue = waitingOn;
+			int oldDonation = oldQueue.donation();
+
+			oldQueue.remove(this);
+			waitingOn = null;
+
+			if (oldQueue.owner != null)
+				oldQueue.owner.donationChanged(oldDonation, oldQueue.donation());
+		}
+
+		/**
+		 * One of the queues this thread owns now donates <tt>newDonation</tt>
+		 * instead of <tt>oldDonation</tt>. Only a rise above the current
+		 * effective priority, or a fall of the donation that set it, can
+		 * change anything.
+		 */
+		void donationChanged(int oldDonation, int newDonation) {
+			if (newDonation > effectivePriority)
+				changeEffectivePriority(newDonation);
+			else if (newDonation < oldDonation
+					&& oldDonation == effectivePriority)
+				recomputeEffectivePriority();
+		}
+
+		private void recomputeEffectivePriority() {
+			int effective = priority;
+
+			for (PriorityQueue queue : owned)
+				effective = Math.max(effective, queue.donation());
+
+			if (effective != effectivePriority)
+				changeEffectivePriority(effective);
+		}
+
+		/**
+		 * Set the cached effective priority and pass the change on to the
+		 * owner of the queue this thread waits on. Iterative, so long
+		 * donation chains cannot overflow the stack.
+		 */
+		private void changeEffectivePriority(int effective) {
+			ThreadState state = this;
+
+			while (true) {
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null) {
+					state.effectivePriority = effective;
+					return;
+				}
+
+				int oldDonation = queue.donation();
+				state.effectivePriority = effective;
+				queue.update(state);
+				int newDonation = queue.donation();
+
+				ThreadState owner = queue.owner;
+				if (owner == null || oldDonation == newDonation)
+					return;
+
+				if (newDonation > owner.effectivePriority) {
+					effective = newDonation;
+				}
+				else if (oldDonation == owner.effectivePriority) {
+					effective = owner.priority;
+					for (PriorityQueue owned : owner.owned)
+						effective = Math.max(effective, owned.donation());
+
+					if (effective == owner.effectivePriority)
+						return;
+				}
+				else {
+					return;
+				}
+
+				state = owner;
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +586,18 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/** The priority-transferring queues the associated thread owns. */
+		protected HashSet<PriorityQueue> owned = new HashSet<PriorityQueue>();
+
+		int heapIndex = -1;
+
+		long arrival;
 	}
 }
@@ -1,163 +1,242 @@
 package nachos.threads;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.ArrayList;
 import nachos.machine.*;
-import java.util.Vector;
 
 /**
  * A <i>Rendezvous</i> allows threads to synchronously exchange values.
+ *
+ * <p>
+ * Each tag in use has a slot holding the value left by the first thread of a
+ * pair, the value its partner answers with, and the lock and condition
+ * variables the pair synchronizes on. Slots are found through an
+ * open-addressing table keyed directly by the <tt>int</tt> tag. A slot goes
+ * back to a free pool as soon as no thread is using its tag, and is reused for
+ * the next new tag, so exchanging does not allocate once the pool has as many
+ * slots as there are tags in use at once.
  */
 public class Rendezvous {
-    /**
-     * Allocate a new Rendezvous.
-     */
-
-    private HashMap<Integer, Integer> flagMap;
-    private HashMap<Integer, LinkedList<Vector<Integer>>>  valMap; // hashmap of tag&values to exchange
-    private HashMap<Integer, Lock> lockMap; // hashmap of tag&lock
-    private HashMap<Integer, Condition> condMap; // hashmap of tag&condition
-    public Rendezvous () {
-        valMap = new HashMap<Integer, LinkedList<Vector<Integer>>>();
-    	lockMap = new HashMap<Integer, Lock>();
-        condMap = new HashMap<Integer, Condition>();
-    	flagMap = new HashMap<Integer, Integer>();
-    }
-
-    /**
-     * Synchronously exchange a value with another thread.  The first
-     * thread A (with value X) to exhange will block waiting for
-     * another thread B (with value Y).  When thread B arrives, it
-     * will unblock A and the threads will exchange values: value Y
-     * will be returned to thread A, and value X will be returned to
-     * thread B.
-     *
-     * Different integer tags are used as different, parallel
-     * synchronization points (i.e., threads synchronizing at
-     * different tags do not interact with each other).  The same tag
-     * can also be used repeatedly for multiple exchanges.
-     *
-     * @param tag the synchronization tag.
-     * @param value the integer to exchange.
-     */
+	/**
+	 * Allocate a new Rendezvous.
+	 */
+	public Rendezvous() {
+		tags = new int[minCapacity];
+		slots = new Slot[minCapacity];
+	}
 
+	/**
+	 * Synchronously exchange a value with another thread.  The first
+	 * thread A (with value X) to exhange will block waiting for
+	 * another thread B (with value Y).  When thread B arrives, it
+	 * will unblock A and the threads will exchange values: value Y
+	 * will be returned to thread A, and value X will be returned to
+	 * thread B.
+	 *
+	 * Different integer tags are used as different, parallel
+	 * synchronization points (i.e., threads synchronizing at
+	 * different tags do not interact with each other).  The same tag
+	 * can also be used repeatedly for multiple exchanges.
+	 *
+	 * @param tag the synchronization tag.
+	 * @param value the integer to exchange.
+	 */
+	public int exchange(int tag, int value) {
+		Slot slot = enter(tag);
+		int exchanged;
 
-    
+		slot.lock.acquire();
 
-    public int exchange (int tag, int value) {
-	// create Lock and Condition variables for this tag if not yet created
+		// a pair that has met but not yet finished owns the slot
+		while (slot.state == Slot.answered)
+			slot.turn.sleep();
 
-	Lock lock =lockMap.get(tag);
-    	if (lock == null){
-		lock = new Lock();
-		lockMap.put(tag, lock);
-	}
-	
-	lock.acquire();
-	
-	if (condMap.get(tag) == null){
-		condMap.put(tag, new Condition(lock));
-		flagMap.put(tag, new Integer(1));
+		if (slot.state == Slot.empty) {
+			slot.value = value;
+			slot.state = Slot.waiting;
+			// whoever is next in line can be our partner
+			slot.turn.wake();
+
+			while (slot.state == Slot.waiting)
+				slot.partner.sleep();
+
+			exchanged = slot.answer;
+			slot.state = Slot.empty;
+			slot.turn.wake();
+		}
+		else {
+			exchanged = slot.value;
+			slot.answer = value;
+			slot.state = Slot.answered;
+			slot.partner.wake();
+		}
+
+		slot.lock.release();
+		leave(slot);
+
+		return exchanged;
 	}
-	// get the condition Lock
-	Condition cond = condMap.get(tag);
-	
-	int exchangedVal;
-	int count = flagMap.get(tag).intValue();
-	
-	flagMap.put(tag, new Integer(count+1));
-	// check whether the thread has received a value to exchange	
-	// if not, block the thread waiting for another thread to exchange value
-	// if so, do not block the thread, exchange value 
-	
-	// when the tagMap does not contain any thread to exchange value
-	if (valMap.get(tag) == null || valMap.get(tag).size() == 0){
-	
-		
-		// acquire the condition Lock
-		
 
-		// put a new linkedlist containing the int value to be exchanged linked with tag
-		LinkedList<Vector<Integer>> nLink = new LinkedList<Vector<Integer>>();
-		Vector<Integer> v = new Vector<Integer>();
-		v.add(new Integer(count));
-		v.add(new Integer(value));
-		nLink.add(v);
-		//valMap.put(tag, new LinkedList<Integer>(new Integer(value)));
-		valMap.put(tag, nLink);
-
-		// sleep the current thread waiting for next thread that calls exchange
-		cond.sleep();
-		LinkedList<Vector<Integer>> li = valMap.get(tag);
-		int r = -1;
-		for(int i =0; i<li.size();i++){
-			if(li.get(i).get(0).intValue() == count+1){
-				r=i;
+	/**
+	 * Find the slot for a tag, taking one from the pool if the tag is not in
+	 * use, and count the current thread as one of its users.
+	 */
+	private Slot enter(int tag) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int index = find(tag);
+		Slot slot = slots[index];
+
+		if (slot == null) {
+			if (2 * (numSlots + 1) > slots.length) {
+				resize(slots.length * 2);
+				index = find(tag);
 			}
+
+			slot = freeSlots;
+			if (slot == null)
+				slot = new Slot();
+			else
+				freeSlots = slot.nextFree;
+
+			slot.tag = tag;
+			slot.nextFree = null;
+			tags[index] = tag;
+			slots[index] = slot;
+			numSlots++;
 		}
-		if(r == -1) System.out.println("ERROR, WRONG INDEX");
-		// get the exchanged value and remove it from valMap
-		exchangedVal = li.remove(r).get(1).intValue();
+
+		slot.users++;
+
+		Machine.interrupt().restore(intStatus);
+		return slot;
 	}
 
-	// when the tagMap contains at least one value to exchange
-	else {
+	/**
+	 * Stop counting the current thread as a user of a slot, and return the slot
+	 * to the pool if no thread is using it any more.
+	 */
+	private void leave(Slot slot) {
+		boolean intStatus = Machine.interrupt().disable();
 
-		
-			
-		if(count %2 ==0){
+		if (--slot.users == 0) {
+			Lib.assertTrue(slot.state == Slot.empty);
 
-		// get the exchange value and remove it from valMap
-		exchangedVal = valMap.get(tag).removeLast().get(1).intValue();
-		
-		// add value to the valMap
-		Vector<Integer> v = new Vector<Integer>();
-		v.add(new Integer(count));
-		v.add(new Integer(value));
-		valMap.get(tag).addLast(v);
-		//addFirst or addLast?
-		
-		// wake the first thread that is asleep
-		cond.wake();
+			delete(find(slot.tag));
+			slot.nextFree = freeSlots;
+			freeSlots = slot;
 
+			if (slots.length > minCapacity && 8 * numSlots < slots.length)
+				resize(slots.length / 2);
 		}
 
-		else{
-		Vector<Integer> v = new Vector<Integer>();
-		v.add(new Integer(count));
-		v.add(new Integer(value));
-		valMap.get(tag).addLast(v);
-			
-		cond.sleep();
-		LinkedList<Vector<Integer>> li = valMap.get(tag);
-		int r = -1;
-		while(r==-1){
-			for(int i =0; i<li.size();i++){
-			if(li.get(i).get(0).intValue()==count+1){
-				r=i;
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the index of the entry for a tag, or of the empty entry where it
+	 * would go.
+	 */
+	private int find(int tag) {
+		int mask = slots.length - 1;
+		int index = hash(tag) & mask;
+
+		while (slots[index] != null && tags[index] != tag)
+			index = (index + 1) & mask;
+
+		return index;
+	}
+
+	/**
+	 * Empty an entry, moving later entries of the same probe run back so that
+	 * lookups never need tombstones.
+	 */
+	private void delete(int index) {
+		int mask = slots.length - 1;
+		int hole = index;
+
+		for (index = (index + 1) & mask; slots[index] != null; index = (index + 1) & mask) {
+			int home = hash(tags[index]) & mask;
+
+			// move the entry into the hole unless its home lies after the hole
+			if (((index - home) & mask) >= ((index - hole) & mask)) {
+				tags[hole] = tags[index];
+				slots[hole] = slots[index];
+				hole = index;
 			}
+		}
+
+		slots[hole] = null;
+		numSlots--;
+	}
+
+	private void resize(int capacity) {
+		int[] oldTags = tags;
+		Slot[] oldSlots = slots;
+
+		tags = new int[capacity];
+		slots = new Slot[capacity];
+
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] != null) {
+				int index = find(oldTags[i]);
+				tags[index] = oldTags[i];
+				slots[index] = oldSlots[i];
 			}
-			if(r==-1) cond.sleep();
 		}
-		 
-		// get the exchanged value and remove it from valMap
-		exchangedVal = li.remove(r).get(1).intValue();
-		cond.wake();
+	}
+
+	private static int hash(int tag) {
+		int h = tag * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * The synchronization point for one tag.
+	 */
+	private static class Slot {
+		Slot() {
+			lock = new Lock();
+			partner = new Condition2(lock);
+			turn = new Condition2(lock);
 		}
-		//if removed A's val and B put it's val in list,
-		//when A woke up, it is on ready state, could be after C. 
-		//B would execute to the end and return A's value. val_list now has B's value. Then C would acquire the lock and enter the queue. Needs to do something so that C won't be able to run earlier than A / at least not get A's value.
+
+		/** No thread is waiting for a partner. */
+		static final int empty = 0;
+
+		/** A thread has left its value and is waiting for a partner. */
+		static final int waiting = 1;
+
+		/** A partner has answered, but the first thread has not yet left. */
+		static final int answered = 2;
+
+		int tag;
+
+		int state = empty;
+
+		int value, answer;
+
+		/** Threads inside <tt>exchange()</tt> for this tag. */
+		int users = 0;
+
+		Lock lock;
+
+		/** Where the first thread of a pair waits for its partner. */
+		Condition2 partner;
+
+		/** Where threads wait while an answered pair finishes. */
+		Condition2 turn;
+
+		Slot nextFree = null;
 	}
-		
-	// release the lock before return
-	lock.release();
-	
-	// return the value that gets exchanged to the thread
-	return exchangedVal;
-    }
 
+	private static final int minCapacity = 16;
+
+	private int[] tags;
+
+	private Slot[] slots;
+
+	private int numSlots = 0;
 
+	private Slot freeSlots = null;
 
     public static void rendezTest1() {
         final Rendezvous r = new Rendezvous();
@@ -2,15 +2,13 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-import java.util.Iterator;
-
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
- * with linked lists. When a thread begins waiting for access, it is appended to
- * the end of a list. The next thread to receive access is always the first
- * thread in the list. This causes access to be given on a first-come
- * first-serve basis.
+ * with linked lists. The links live in each thread's scheduling state, so
+ * queueing a thread allocates nothing. When a thread begins waiting for
+ * access, it is appended to the end of a list. The next thread to receive
+ * access is always the first thread in the list. This causes access to be
+ * given on a first-come first-serve basis.
  */
 public class RoundRobinScheduler extends Scheduler {
 	/**
@@ -29,6 +27,20 @@ public class RoundRobinScheduler extends Scheduler {
 		return new FifoQueue();
 	}
 
+	/**
+	 * Return the queue links of the specified thread, creating them if this
+	 * is the first time it is queued.
+	 *
+	 * @param thread the thread whose links to return.
+	 * @return the queue links of the specified thread.
+	 */
+	protected ThreadList.Link getLink(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadList.Link(thread);
+
+		return (ThreadList.Link) thread.schedulingState;
+	}
+
 	private class FifoQueue extends ThreadQueue {
 		/**
 		 * Add a thread to the end of the wait queue.
@@ -38,7 +50,7 @@ public class RoundRobinScheduler extends Scheduler {
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			waitQueue.add(thread);
+			waitQueue.add(getLink(thread));
 		}
 
 		/**
@@ -53,7 +65,7 @@ public class RoundRobinScheduler extends Scheduler {
 			if (waitQueue.isEmpty())
 				return null;
 
-			return (KThread) waitQueue.removeFirst();
+			return waitQueue.removeFirst().getThread();
 		}
 
 		/**
@@ -73,10 +85,9 @@ public class RoundRobinScheduler extends Scheduler {
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			for (Iterator i = waitQueue.iterator(); i.hasNext();)
-				System.out.print((KThread) i.next() + " ");
+			waitQueue.print();
 		}
 
-		private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+		private ThreadList waitQueue = new ThreadList();
 	}
 }
@@ -151,4 +151,17 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled,
+	 * to charge the current thread for its time slice. Schedulers that give
+	 * threads longer quanta can return <tt>false</tt> to let the current
+	 * thread keep running.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return true;
+	}
 }
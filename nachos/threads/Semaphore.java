@@ -28,7 +28,32 @@ public class Semaphore {
 	 * @param initialValue the initial value of this semaphore.
 	 */
 	public Semaphore(int initialValue) {
+		this(initialValue, true);
+	}
+
+	/**
+	 * Allocate a new semaphore, which the contention profiler ignores if it is
+	 * only a building block of another primitive.
+	 *
+	 * @param initialValue the initial value of this semaphore.
+	 * @param profiled whether to record the contention of this semaphore.
+	 */
+	Semaphore(int initialValue, boolean profiled) {
 		value = initialValue;
+		if (profiled)
+			profile = ContentionProfiler.newRecord("Semaphore");
+	}
+
+	/**
+	 * Set the name this semaphore is reported under by the contention profiler.
+	 *
+	 * @param name the name to give to this semaphore.
+	 * @return this semaphore.
+	 */
+	public Semaphore setName(String name) {
+		if (profile != null)
+			profile.name = name;
+		return this;
 	}
 
 	/**
@@ -36,8 +61,12 @@ public class Semaphore {
 	 */
 	public void P() {
 		boolean intStatus = Machine.interrupt().disable();
+		long waitStart = -1;
 
 		if (value == 0) {
+			if (profile != null)
+				waitStart = Machine.timer().getTime();
+
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
 		}
@@ -45,6 +74,9 @@ public class Semaphore {
 			value--;
 		}
 
+		if (profile != null)
+			profile.acquired(waitStart);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -99,6 +131,9 @@ public class Semaphore {
 		}
 	}
 
+	/** Contention counters, or <tt>null</tt> if profiling is off. */
+	private ContentionProfiler.Record profile = null;
+
 	private int value;
 	public int r_val;
 	public boolean complete = true;
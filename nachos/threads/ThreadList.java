@@ -0,0 +1,203 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A doubly-linked FIFO list of threads whose links live in the threads'
+ * scheduling state rather than in separately allocated nodes. Appending,
+ * removing from either end and unlinking a thread from the middle all take
+ * constant time and allocate nothing, so <tt>ThreadQueue</tt> implementations
+ * can use these lists for queues that are hit on every yield and wakeup.
+ *
+ * <p>
+ * A scheduler that uses a <tt>ThreadList</tt> stores a <tt>Link</tt>, or an
+ * object that extends it, in each thread's <tt>schedulingState</tt>. A link
+ * can be on at most one list at a time. Since a thread waits in only one place
+ * at a time, appending a link that is still on some other list first removes
+ * it from there; this happens, for instance, when a thread sleeping on a
+ * <tt>Condition2</tt> is woken by its timeout instead.
+ */
+public class ThreadList {
+	/**
+	 * Allocate a new, empty thread list.
+	 */
+	public ThreadList() {
+	}
+
+	/**
+	 * Test whether this list is empty.
+	 *
+	 * @return <tt>true</tt> if this list has no links.
+	 */
+	public boolean isEmpty() {
+		return head == null;
+	}
+
+	/**
+	 * Return the number of links on this list.
+	 *
+	 * @return the number of links on this list.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the first link on this list without removing it.
+	 *
+	 * @return the first link, or <tt>null</tt> if this list is empty.
+	 */
+	public Link first() {
+		return head;
+	}
+
+	/**
+	 * Add a link to the end of this list, first removing it from any list it
+	 * is already on.
+	 *
+	 * @param link the link to append.
+	 */
+	public void add(Link link) {
+		if (link.list != null)
+			link.list.remove(link);
+
+		link.list = this;
+		link.prev = tail;
+		link.next = null;
+
+		if (tail == null)
+			head = link;
+		else
+			tail.next = link;
+		tail = link;
+
+		size++;
+	}
+
+	/**
+	 * Remove the first link from this list.
+	 *
+	 * @return the first link, or <tt>null</tt> if this list is empty.
+	 */
+	public Link removeFirst() {
+		Link link = head;
+		if (link != null)
+			remove(link);
+
+		return link;
+	}
+
+	/**
+	 * Remove a link from this list.
+	 *
+	 * @param link the link to remove, which must be on this list.
+	 */
+	public void remove(Link link) {
+		Lib.assertTrue(link.list == this);
+
+		if (link.prev == null)
+			head = link.next;
+		else
+			link.prev.next = link.next;
+
+		if (link.next == null)
+			tail = link.prev;
+		else
+			link.next.prev = link.prev;
+
+		link.list = null;
+		link.next = link.prev = null;
+
+		size--;
+	}
+
+	/**
+	 * Move every link on another list, in order, onto the end of this one,
+	 * leaving the other list empty.
+	 *
+	 * @param other the list to empty onto this one.
+	 */
+	public void append(ThreadList other) {
+		Lib.assertTrue(other != this);
+
+		if (other.head == null)
+			return;
+
+		for (Link link = other.head; link != null; link = link.next)
+			link.list = this;
+
+		if (tail == null)
+			head = other.head;
+		else {
+			tail.next = other.head;
+			other.head.prev = tail;
+		}
+		tail = other.tail;
+		size += other.size;
+
+		other.head = other.tail = null;
+		other.size = 0;
+	}
+
+	/**
+	 * Print out the threads on this list, in order.
+	 */
+	public void print() {
+		for (Link link = head; link != null; link = link.next)
+			System.out.print(link.thread + " ");
+	}
+
+	private Link head = null, tail = null;
+
+	private int size = 0;
+
+	/**
+	 * The links of a thread on a <tt>ThreadList</tt>. Schedulers that need more
+	 * per-thread state extend this class and store the result in
+	 * <tt>schedulingState</tt>.
+	 */
+	public static class Link {
+		/**
+		 * Allocate a new link for the specified thread.
+		 *
+		 * @param thread the thread this link belongs to.
+		 */
+		public Link(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Return the thread this link belongs to.
+		 *
+		 * @return the thread this link belongs to.
+		 */
+		public KThread getThread() {
+			return thread;
+		}
+
+		/**
+		 * Return the list this link is on.
+		 *
+		 * @return the list this link is on, or <tt>null</tt> if none.
+		 */
+		public ThreadList getList() {
+			return list;
+		}
+
+		/**
+		 * Return the link after this one on its list.
+		 *
+		 * @return the next link, or <tt>null</tt> if this is the last one.
+		 */
+		public Link getNext() {
+			return next;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		private ThreadList list = null;
+
+		private Link next = null, prev = null;
+	}
+}
@@ -49,9 +49,13 @@ public class ThreadedKernel extends Kernel {
 //		Alarm.selfTest();
 //		Condition2.selfTest();
 //		Rendezvous.selfTest();
+//		Communicator.selfTest();
 //		KThread.selfTest();
 //		Semaphore.selfTest();
 //		SynchList.selfTest();
+//		PriorityScheduler.selfTest();
+//		LotteryScheduler.selfTest();
+//		MultilevelFeedbackScheduler.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -65,9 +69,11 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel, printing the contention profile if there is one.
+	 * Never returns.
 	 */
 	public void terminate() {
+		ContentionProfiler.print();
 		Machine.halt();
 	}
 
@@ -96,4 +102,6 @@ public class ThreadedKernel extends Kernel {
 	private static ElevatorController dummy7 = null;
 
         private static GameMatch dummy8 = null;
+
+	private static MultilevelFeedbackScheduler dummy9 = null;
 }
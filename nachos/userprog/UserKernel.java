@@ -35,7 +35,7 @@ public class UserKernel extends ThreadedKernel {
 			free_physical_pages.add(new Integer(i));
 		}
 
-		lock1 = new Lock();
+		lock1 = new AdaptiveLock().setName("UserKernel.lock1");
 		cv1 = new Condition(lock1);
 		lock2 = new Lock();
 
@@ -128,9 +128,12 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel, printing the counters of <tt>lock1</tt> if
+	 * contention profiling is on. Never returns.
 	 */
 	public void terminate() {
+		if (ContentionProfiler.enabled())
+			lock1.print();
 		super.terminate();
 	}
 
@@ -145,7 +148,7 @@ public class UserKernel extends ThreadedKernel {
 	// this static linkedlist keeps track of all free physical pages to be allocated
 	public static LinkedList<Integer> free_physical_pages;
 
-	public static Lock lock1;
+	public static AdaptiveLock lock1;
 
 	public static Condition cv1;
 
@@ -540,9 +540,10 @@ public class UserProcess {
 	 */
 	private int handleHalt() {
 		if(pid !=0) return -1;
-		Machine.halt();
+		// terminate the kernel, so it prints its reports before halting
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
@@ -0,0 +1,131 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import nachos.machine.*;
+import nachos.vm.VMKernel.PageFrame;
+
+/**
+ * Adaptive replacement, as in ARC by Megiddo and Modha. Since only
+ * <tt>used</tt> bits are available, this is its clock-based form, CAR, by
+ * Bansal and Modha.
+ *
+ * <p>
+ * Pages faulted in for the first time go on the clock <tt>T1</tt>, and pages
+ * that have been used again while on <tt>T1</tt>, or that fault again soon
+ * after being evicted, go on the clock <tt>T2</tt>. The identities of pages
+ * recently evicted from each clock are remembered on <tt>B1</tt> and
+ * <tt>B2</tt>. A fault on a page remembered on <tt>B1</tt> means <tt>T1</tt>
+ * was too small, so its target size grows; a fault on one remembered on
+ * <tt>B2</tt> means <tt>T2</tt> was too small, so the target shrinks. Thus
+ * the split between recency and frequency adapts to the workload.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new adaptive replacement policy.
+	 */
+	public ARCPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn, boolean demand) {
+		if (demand)
+			faults++;
+		clocks.remove(ppn);
+
+		Long key = Long.valueOf(VMKernel.evict_list[ppn].pageKey());
+
+		if (b1.contains(key)) {
+			ghostHits++;
+			target = Math.min(target + Math.max(1, b2.size() / b1.size()),
+					numFrames);
+			b1.remove(key);
+			clocks.addLast(clockT2, ppn);
+		}
+		else if (b2.contains(key)) {
+			ghostHits++;
+			target = Math.max(target - Math.max(1, b1.size() / b2.size()), 0);
+			b2.remove(key);
+			clocks.addLast(clockT2, ppn);
+		}
+		else {
+			// keep the history to at most twice the number of frames
+			int t1 = clocks.size(clockT1), t2 = clocks.size(clockT2);
+			if (t1 + b1.size() >= numFrames && !b1.isEmpty())
+				removeOldest(b1);
+			else if (t1 + t2 + b1.size() + b2.size() >= 2 * numFrames
+					&& !b2.isEmpty())
+				removeOldest(b2);
+
+			clocks.addLast(clockT1, ppn);
+		}
+	}
+
+	public int findVictim() {
+		while (true) {
+			boolean fromT1 = clocks.size(clockT1) >= Math.max(1, target)
+					|| clocks.size(clockT2) == 0;
+
+			// never wait on a clock whose frames are all pinned
+			if (clocks.unpinned(fromT1 ? clockT1 : clockT2) == 0)
+				fromT1 = !fromT1;
+
+			int which = fromT1 ? clockT1 : clockT2;
+			int ppn = clocks.first(which);
+			PageFrame frame = VMKernel.evict_list[ppn];
+
+			if (frame.pinned) {
+				clocks.advance(which);
+			}
+			else if (frame.pageEntry.used) {
+				// a page used again belongs on T2
+				frame.pageEntry.used = false;
+				hits++;
+				clocks.remove(ppn);
+				clocks.addLast(clockT2, ppn);
+			}
+			else {
+				clocks.remove(ppn);
+				(fromT1 ? b1 : b2).add(Long.valueOf(frame.pageKey()));
+				if (b2.size() > numFrames)
+					removeOldest(b2);
+
+				evictions++;
+				return ppn;
+			}
+		}
+	}
+
+	public void pinChanged(int ppn, boolean pinned) {
+		clocks.pinChanged(ppn, pinned);
+	}
+
+	private static void removeOldest(LinkedHashSet<Long> history) {
+		Iterator<Long> oldest = history.iterator();
+		oldest.next();
+		oldest.remove();
+	}
+
+	public void print() {
+		System.out.println("Replacement: ARC, faults " + faults + ", hits "
+				+ hits + ", evictions " + evictions + ", history hits "
+				+ ghostHits + ", T1 target " + target);
+	}
+
+	private int numFrames;
+
+	/** The two clocks, each starting at its hand. */
+	private FrameLists clocks = new FrameLists(2);
+
+	private static final int clockT1 = 0, clockT2 = 1;
+
+	/** The pages recently evicted from each clock, oldest first. */
+	private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>(),
+			b2 = new LinkedHashSet<Long>();
+
+	/** The size <tt>T1</tt> is adapting towards. */
+	private int target = 0;
+
+	private int faults = 0, hits = 0, evictions = 0, ghostHits = 0;
+}
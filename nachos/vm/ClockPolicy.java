@@ -0,0 +1,58 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.VMKernel.PageFrame;
+
+/**
+ * The clock algorithm: a hand sweeps over the frames, giving each page whose
+ * <tt>used</tt> bit is set a second chance by clearing it, and evicts the
+ * first page it finds that has not been used since the last sweep.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn, boolean demand) {
+		if (demand)
+			faults++;
+	}
+
+	public int findVictim() {
+		while (true) {
+			PageFrame frame = VMKernel.evict_list[hand];
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (frame.pinned)
+				continue;
+
+			if (frame.pageEntry.used) {
+				frame.pageEntry.used = false;
+				hits++;
+				continue;
+			}
+
+			evictions++;
+			return ppn;
+		}
+	}
+
+	public void pinChanged(int ppn, boolean pinned) {
+	}
+
+	public void print() {
+		System.out.println("Replacement: clock, faults " + faults + ", hits "
+				+ hits + ", evictions " + evictions);
+	}
+
+	private int numFrames;
+
+	/** The next frame the hand will look at. */
+	private int hand = 0;
+
+	private int faults = 0, hits = 0, evictions = 0;
+}
@@ -0,0 +1,141 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A fixed number of circular lists of physical frames, for replacement
+ * policies that keep frames in queues or clocks. Each frame is on at most one
+ * list, and the links are kept in arrays indexed by frame, so adding,
+ * removing and moving frames takes constant time and allocates nothing.
+ *
+ * <p>
+ * Each list also counts its unpinned frames, kept up to date by
+ * <tt>pinChanged()</tt>, so a policy can tell at once whether a list holds
+ * any frame it may evict.
+ */
+class FrameLists {
+	/**
+	 * Allocate empty lists.
+	 *
+	 * @param numLists the number of lists.
+	 */
+	FrameLists(int numLists) {
+		int numFrames = Machine.processor().getNumPhysPages();
+
+		next = new int[numFrames];
+		prev = new int[numFrames];
+		list = new int[numFrames];
+		for (int ppn = 0; ppn < numFrames; ppn++)
+			list[ppn] = none;
+
+		first = new int[numLists];
+		for (int which = 0; which < numLists; which++)
+			first[which] = none;
+		size = new int[numLists];
+		unpinned = new int[numLists];
+	}
+
+	/**
+	 * Add a frame to the end of a list. The frame must not be on any list.
+	 */
+	void addLast(int which, int ppn) {
+		Lib.assertTrue(list[ppn] == none);
+
+		if (first[which] == none) {
+			first[which] = next[ppn] = prev[ppn] = ppn;
+		}
+		else {
+			int head = first[which], tail = prev[head];
+			next[tail] = ppn;
+			prev[ppn] = tail;
+			next[ppn] = head;
+			prev[head] = ppn;
+		}
+
+		list[ppn] = which;
+		size[which]++;
+		if (!VMKernel.evict_list[ppn].pinned)
+			unpinned[which]++;
+	}
+
+	/**
+	 * Take a frame off whichever list it is on, if any.
+	 */
+	void remove(int ppn) {
+		int which = list[ppn];
+		if (which == none)
+			return;
+
+		if (--size[which] == 0) {
+			first[which] = none;
+		}
+		else {
+			next[prev[ppn]] = next[ppn];
+			prev[next[ppn]] = prev[ppn];
+			if (first[which] == ppn)
+				first[which] = next[ppn];
+		}
+
+		list[ppn] = none;
+		if (!VMKernel.evict_list[ppn].pinned)
+			unpinned[which]--;
+	}
+
+	/**
+	 * Move the first frame of a list to its end, as a clock hand moving on.
+	 */
+	void advance(int which) {
+		if (first[which] != none)
+			first[which] = next[first[which]];
+	}
+
+	/**
+	 * Return the first frame of a list, or -1 if it is empty.
+	 */
+	int first(int which) {
+		return first[which];
+	}
+
+	/**
+	 * Return the frame after a frame on its list, going round to the first.
+	 */
+	int next(int ppn) {
+		return next[ppn];
+	}
+
+	/**
+	 * Return the list a frame is on, or -1 if it is on none.
+	 */
+	int listOf(int ppn) {
+		return list[ppn];
+	}
+
+	int size(int which) {
+		return size[which];
+	}
+
+	/**
+	 * Return the number of frames on a list that are not pinned.
+	 */
+	int unpinned(int which) {
+		return unpinned[which];
+	}
+
+	/**
+	 * Note that a frame was just pinned or unpinned.
+	 */
+	void pinChanged(int ppn, boolean pinned) {
+		if (list[ppn] != none)
+			unpinned[list[ppn]] += pinned ? -1 : 1;
+	}
+
+	/** The frame after and before each frame on its list. */
+	private int[] next, prev;
+
+	/** The list each frame is on. */
+	private int[] list;
+
+	private int[] first, size, unpinned;
+
+	static final int none = -1;
+}
@@ -0,0 +1,182 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.VMKernel.PageFrame;
+
+/**
+ * A kernel thread that writes dirty pages to swap in the background, so that
+ * a page fault needing a frame usually finds a free or clean one it can take
+ * without waiting for a write. <tt>VMKernel</tt> starts one when
+ * <tt>VMKernel.cleanWatermark</tt> is set.
+ *
+ * <p>
+ * After every page fault, if fewer than the watermark's number of frames are
+ * free or hold clean, unpinned pages, the cleaner is woken. It then writes
+ * dirty pages that have not been used since the replacement policy last
+ * cleared their <tt>used</tt> bits, and are so likely to be evicted soon,
+ * until twice the watermark's number of frames are clean. Each page is copied
+ * and marked clean with <tt>UserKernel.lock1</tt> held, and then written with
+ * the lock released, so faults go on while the write is in progress. If the
+ * page is written to again meanwhile, it is dirty again and will be written
+ * once more.
+ *
+ * <p>
+ * Until the write finishes, the swap slot belongs to the cleaner: a page
+ * faulted back in is copied from the cleaner's buffer rather than read from
+ * swap, and a slot given up by its page is only freed once the write is done.
+ */
+public class PageCleaner implements Runnable {
+	/**
+	 * Allocate a new page cleaner.
+	 *
+	 * @param watermark the number of clean frames below which the cleaner
+	 * starts writing.
+	 */
+	public PageCleaner(int watermark) {
+		numFrames = Machine.processor().getNumPhysPages();
+		lowWater = Math.min(watermark, numFrames);
+		highWater = Math.min(2 * watermark, numFrames);
+
+		wanted = new Condition(UserKernel.lock1);
+	}
+
+	/**
+	 * Write pages forever.
+	 */
+	public void run() {
+		UserKernel.lock1.acquire();
+
+		while (true) {
+			int ppn = -1;
+			if (numClean() < highWater)
+				ppn = findDirty();
+
+			if (ppn < 0) {
+				wanted.sleep();
+				continue;
+			}
+
+			PageFrame frame = VMKernel.evict_list[ppn];
+			process = frame.process;
+			vpn = frame.pageEntry.vpn;
+			slot = process.assignSwapSlot(vpn);
+
+			System.arraycopy(Machine.processor().getMemory(),
+					Processor.makeAddress(ppn, 0), buffer, 0, pageSize);
+			frame.pageEntry.dirty = false;
+
+			UserKernel.lock1.release();
+			VMKernel.swap.write(slot, buffer, 0, 1);
+			UserKernel.lock1.acquire();
+
+			// the page may have given up the slot while it was being written
+			if (!process.hasSwapSlot(vpn, slot))
+				VMKernel.swap.free(slot);
+
+			process = null;
+			cleaned++;
+		}
+	}
+
+	/**
+	 * Called after every page fault, with <tt>UserKernel.lock1</tt> held, to
+	 * wake the cleaner if clean frames are running low.
+	 */
+	void pageFaulted() {
+		if (process == null && numClean() < lowWater)
+			wanted.wake();
+	}
+
+	/**
+	 * Test whether a page is being written by the cleaner, so that its swap
+	 * slot must not be freed.
+	 *
+	 * @param process the process the page belongs to.
+	 * @param vpn the page.
+	 * @return <tt>true</tt> if the page is being written.
+	 */
+	boolean isWriting(VMProcess process, int vpn) {
+		return this.process == process && this.vpn == vpn;
+	}
+
+	/**
+	 * If a page is being written, copy its contents into a frame, since its
+	 * swap slot does not hold them yet.
+	 *
+	 * @param process the process the page belongs to.
+	 * @param vpn the page.
+	 * @param ppn the frame to copy the page into.
+	 * @return <tt>true</tt> if the page was being written and was copied.
+	 */
+	boolean copyIfWriting(VMProcess process, int vpn, int ppn) {
+		if (!isWriting(process, vpn))
+			return false;
+
+		System.arraycopy(buffer, 0, Machine.processor().getMemory(),
+				Processor.makeAddress(ppn, 0), pageSize);
+		return true;
+	}
+
+	/**
+	 * Return the number of frames that are free or hold a clean page that
+	 * could be evicted right away.
+	 */
+	private int numClean() {
+		int clean = UserKernel.free_physical_pages.size();
+
+		for (int ppn = 0; ppn < numFrames; ppn++) {
+			PageFrame frame = VMKernel.evict_list[ppn];
+			if (frame.pageEntry != null && frame.pageEntry.valid
+					&& !frame.pageEntry.dirty && !frame.pinned)
+				clean++;
+		}
+
+		return clean;
+	}
+
+	/**
+	 * Return the next frame, in clock order, holding a dirty page that has not
+	 * been used lately, or -1 if there is none.
+	 */
+	private int findDirty() {
+		for (int step = 0; step < numFrames; step++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			PageFrame frame = VMKernel.evict_list[ppn];
+			if (frame.pageEntry != null && frame.pageEntry.valid
+					&& frame.pageEntry.dirty && !frame.pageEntry.used
+					&& !frame.pinned)
+				return ppn;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Print how many pages the cleaner wrote.
+	 */
+	public void print() {
+		System.out.println("Cleaner: pages cleaned " + cleaned);
+	}
+
+	private int numFrames, lowWater, highWater;
+
+	/** Where the cleaner waits until clean frames run low. */
+	private Condition wanted;
+
+	private int hand = 0;
+
+	/** The page being written, and the slot it is being written to. */
+	private VMProcess process = null;
+
+	private int vpn, slot;
+
+	private byte[] buffer = new byte[pageSize];
+
+	private int cleaned = 0;
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,58 @@
+package nachos.vm;
+
+/**
+ * Chooses which physical page to evict when a page fault finds no free page.
+ * <tt>VMKernel</tt> constructs the class named by
+ * <tt>VMKernel.replacementPolicy</tt> (by default
+ * <tt>nachos.vm.ClockPolicy</tt>) and calls it with <tt>UserKernel.lock1</tt>
+ * held.
+ *
+ * <p>
+ * A policy learns about the pages in memory through
+ * <tt>VMKernel.evict_list</tt>: each frame's process, its translation entry,
+ * whose <tt>used</tt> and <tt>dirty</tt> bits the processor sets, and whether
+ * it is pinned. A policy must never choose a pinned frame.
+ *
+ * <p>
+ * When the kernel terminates, if <tt>VMKernel.stats</tt> is set, the policy
+ * prints its counters: the page faults it saw, not counting pages read ahead,
+ * and its hits, the references it noticed through <tt>used</tt> bits while
+ * looking for a victim, which is the only way the kernel learns of references
+ * that do not fault.
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Note that a page was just loaded into a frame, because it was faulted on
+	 * or read ahead of a fault. Its entry in <tt>VMKernel.evict_list</tt> has
+	 * already been filled in. The frame may have been freed without being
+	 * chosen as a victim, when its process exited, so it may still be on the
+	 * policy's lists.
+	 *
+	 * @param ppn the frame the page was loaded into.
+	 * @param demand <tt>true</tt> if the page was faulted on, rather than read
+	 * ahead.
+	 */
+	public void pageLoaded(int ppn, boolean demand);
+
+	/**
+	 * Choose a frame to evict. Every frame holds a page, and at least one is
+	 * not pinned. The caller writes the victim to swap if it is dirty and then
+	 * frees it.
+	 *
+	 * @return the physical page number of the victim.
+	 */
+	public int findVictim();
+
+	/**
+	 * Note that a frame was just pinned or unpinned.
+	 *
+	 * @param ppn the frame.
+	 * @param pinned <tt>true</tt> if the frame is now pinned.
+	 */
+	public void pinChanged(int ppn, boolean pinned);
+
+	/**
+	 * Print this policy's counters.
+	 */
+	public void print();
+}
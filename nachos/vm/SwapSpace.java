@@ -0,0 +1,178 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The swap file, divided into page-sized slots, with a bitmap of which slots
+ * are in use. Slots are handed out singly or as runs of adjacent slots, so
+ * that several pages can be written with one I/O.
+ *
+ * <p>
+ * Slots are handed out lowest first, so freed slots near the start of the
+ * file are reused before the file grows. The file never shrinks while any
+ * slot is in use: an <tt>OpenFile</tt> cannot be shortened except by opening
+ * it again, which costs as much as a write. Only once no slot is in use, and
+ * only if the file has grown to at least <tt>minTruncate</tt> pages, is it
+ * truncated back to nothing that way.
+ */
+public class SwapSpace {
+	/**
+	 * Create a new, empty swap file.
+	 *
+	 * @param name the name of the swap file.
+	 */
+	public SwapSpace(String name) {
+		this.name = name;
+		file = ThreadedKernel.fileSystem.open(name, true);
+		Lib.assertTrue(file != null);
+	}
+
+	/**
+	 * Allocate one slot.
+	 *
+	 * @return the slot.
+	 */
+	public int allocate() {
+		return allocateRun(1);
+	}
+
+	/**
+	 * Allocate a run of adjacent slots, the first such run that is free.
+	 *
+	 * @param length the number of slots.
+	 * @return the first slot of the run.
+	 */
+	public int allocateRun(int length) {
+		Lib.assertTrue(length > 0);
+
+		int start = 0, found = 0;
+		while (found < length) {
+			if (isUsed(start + found)) {
+				start += found + 1;
+				found = 0;
+			}
+			else {
+				found++;
+			}
+		}
+
+		for (int slot = start; slot < start + length; slot++)
+			setUsed(slot, true);
+
+		numUsed += length;
+		fileLength = Math.max(fileLength, start + length);
+		maxLength = Math.max(maxLength, fileLength);
+		return start;
+	}
+
+	/**
+	 * Free a slot, truncating the swap file if no slot is left in use and the
+	 * file is long enough to be worth it.
+	 *
+	 * @param slot the slot to free.
+	 */
+	public void free(int slot) {
+		Lib.assertTrue(isUsed(slot));
+
+		setUsed(slot, false);
+		numUsed--;
+
+		if (numUsed == 0 && fileLength >= minTruncate) {
+			fileLength = 0;
+			file.close();
+			file = ThreadedKernel.fileSystem.open(name, true);
+			Lib.assertTrue(file != null);
+			truncations++;
+		}
+	}
+
+	/**
+	 * Read pages from adjacent slots.
+	 *
+	 * @param slot the first slot to read.
+	 * @param buf the buffer to read into.
+	 * @param offset the first byte of <i>buf</i> to read into.
+	 * @param pages the number of pages to read.
+	 */
+	public void read(int slot, byte[] buf, int offset, int pages) {
+		int length = pages * pageSize;
+		Lib.assertTrue(file.read(slot * pageSize, buf, offset, length) == length);
+		reads++;
+		pagesRead += pages;
+	}
+
+	/**
+	 * Write pages to adjacent slots.
+	 *
+	 * @param slot the first slot to write.
+	 * @param buf the buffer to write from.
+	 * @param offset the first byte of <i>buf</i> to write.
+	 * @param pages the number of pages to write.
+	 */
+	public void write(int slot, byte[] buf, int offset, int pages) {
+		int length = pages * pageSize;
+		Lib.assertTrue(file.write(slot * pageSize, buf, offset, length) == length);
+		writes++;
+		pagesWritten += pages;
+	}
+
+	/**
+	 * Close and remove the swap file.
+	 */
+	public void close() {
+		file.close();
+		ThreadedKernel.fileSystem.remove(name);
+	}
+
+	/**
+	 * Print how much the swap file was used.
+	 */
+	public void print() {
+		System.out.println("Swap file: reads " + reads + " (" + pagesRead
+				+ " pages), writes " + writes + " (" + pagesWritten
+				+ " pages), largest " + maxLength + " pages, truncated "
+				+ truncations + " times");
+	}
+
+	private boolean isUsed(int slot) {
+		int word = slot / 64;
+		return word < used.length && (used[word] & (1L << (slot % 64))) != 0;
+	}
+
+	private void setUsed(int slot, boolean value) {
+		int word = slot / 64;
+		if (word >= used.length) {
+			long[] grown = new long[Math.max(used.length * 2, word + 1)];
+			System.arraycopy(used, 0, grown, 0, used.length);
+			used = grown;
+		}
+
+		if (value)
+			used[word] |= 1L << (slot % 64);
+		else
+			used[word] &= ~(1L << (slot % 64));
+	}
+
+	private String name;
+
+	private OpenFile file;
+
+	/** One bit per slot, set if the slot is in use. */
+	private long[] used = new long[1];
+
+	private int numUsed = 0;
+
+	/**
+	 * The length of the file in pages, and the most it has ever been.
+	 */
+	private int fileLength = 0, maxLength = 0;
+
+	private int reads = 0, writes = 0, pagesRead = 0, pagesWritten = 0,
+			truncations = 0;
+
+	/** The smallest file, in pages, worth truncating when it empties. */
+	private static final int minTruncate = 16;
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,131 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import nachos.machine.*;
+import nachos.vm.VMKernel.PageFrame;
+
+/**
+ * The 2Q algorithm of Johnson and Shasha, with the clock algorithm standing
+ * in for LRU since only <tt>used</tt> bits are available.
+ *
+ * <p>
+ * A page faulted in for the first time goes on <tt>A1in</tt>, a FIFO of about
+ * a quarter of the frames, and is not promoted however much it is used there,
+ * so a scan through a large array passes through without pushing out the
+ * pages that are used repeatedly. When a page leaves <tt>A1in</tt> its
+ * identity is remembered in <tt>A1out</tt>, which holds no frames. A page
+ * that faults again while it is remembered there has proven it is reused, and
+ * goes on <tt>Am</tt>, the main clock.
+ */
+public class TwoQueuePolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new 2Q policy.
+	 */
+	public TwoQueuePolicy() {
+		int numFrames = Machine.processor().getNumPhysPages();
+
+		maxIn = Math.max(1, numFrames / 4);
+		maxOut = Math.max(1, numFrames / 2);
+	}
+
+	public void pageLoaded(int ppn, boolean demand) {
+		if (demand)
+			faults++;
+		queues.remove(ppn);
+
+		if (out.remove(VMKernel.evict_list[ppn].pageKey())) {
+			ghostHits++;
+			queues.addLast(queueMain, ppn);
+		}
+		else {
+			queues.addLast(queueIn, ppn);
+		}
+	}
+
+	public int findVictim() {
+		int ppn = -1;
+
+		if (queues.size(queueIn) > maxIn || queues.size(queueMain) == 0)
+			ppn = fromIn();
+		if (ppn < 0)
+			ppn = fromMain();
+		if (ppn < 0)
+			ppn = fromIn();
+
+		Lib.assertTrue(ppn >= 0);
+		evictions++;
+		return ppn;
+	}
+
+	public void pinChanged(int ppn, boolean pinned) {
+		queues.pinChanged(ppn, pinned);
+	}
+
+	/**
+	 * Evict the oldest unpinned page on <tt>A1in</tt>, remembering it on
+	 * <tt>A1out</tt>.
+	 */
+	private int fromIn() {
+		if (queues.unpinned(queueIn) == 0)
+			return -1;
+
+		int ppn = queues.first(queueIn);
+		while (VMKernel.evict_list[ppn].pinned)
+			ppn = queues.next(ppn);
+
+		queues.remove(ppn);
+
+		out.add(VMKernel.evict_list[ppn].pageKey());
+		if (out.size() > maxOut) {
+			Iterator<Long> oldest = out.iterator();
+			oldest.next();
+			oldest.remove();
+		}
+
+		return ppn;
+	}
+
+	/**
+	 * Sweep the clock of <tt>Am</tt> for an unused, unpinned page.
+	 */
+	private int fromMain() {
+		if (queues.unpinned(queueMain) == 0)
+			return -1;
+
+		while (true) {
+			int ppn = queues.first(queueMain);
+			PageFrame frame = VMKernel.evict_list[ppn];
+
+			if (!frame.pinned && !frame.pageEntry.used) {
+				queues.remove(ppn);
+				return ppn;
+			}
+
+			if (frame.pageEntry.used) {
+				frame.pageEntry.used = false;
+				hits++;
+			}
+			queues.advance(queueMain);
+		}
+	}
+
+	public void print() {
+		System.out.println("Replacement: 2Q, faults " + faults + ", hits "
+				+ hits + ", evictions " + evictions + ", A1out hits "
+				+ ghostHits);
+	}
+
+	/** A1in, oldest first, and Am, in clock order. */
+	private FrameLists queues = new FrameLists(2);
+
+	private static final int queueIn = 0, queueMain = 1;
+
+	/** The pages recently evicted from A1in, oldest first. */
+	private LinkedHashSet<Long> out = new LinkedHashSet<Long>();
+
+	private int maxIn, maxOut;
+
+	private int faults = 0, hits = 0, evictions = 0, ghostHits = 0;
+}
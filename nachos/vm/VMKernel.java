@@ -1,7 +1,5 @@
 package nachos.vm;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -26,14 +24,29 @@ public class VMKernel extends UserKernel {
 		int n_ppgs = Machine.processor().getNumPhysPages();
 		// initialize the PageFrame array and index it based on the ppn
 		evict_list = new PageFrame[n_ppgs];
-		lock3 = new Lock();
+		lock3 = new AdaptiveLock().setName("VMKernel.lock3");
 		for(int cur_ppn = 0; cur_ppn < n_ppgs; cur_ppn++) {
 			evict_list[cur_ppn] = new PageFrame();
+			evict_list[cur_ppn].ppn = cur_ppn;
 		}
 		cond = new Condition(lock3);
 		// should handle swap file here?
-		swp_file = ThreadedKernel.fileSystem.open("Global_Swap", true);
-		free_swp_pages = new LinkedList<Integer>();
+		swap = new SwapSpace("Global_Swap");
+		swapCluster = Math.max(1, Config.getInteger("VMKernel.swapCluster", 4));
+		// read ahead at most a quarter of memory at a time
+		maxReadAhead = Math.min(Config.getInteger("VMKernel.maxReadAhead", 8),
+				n_ppgs / 4);
+		// choose how to pick a page to evict
+		replacementPolicy = (PageReplacementPolicy) Lib.constructObject(Config
+				.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+		// print the paging counters at the end, if asked to
+		printStats = Config.getBoolean("VMKernel.stats", false);
+		// start writing dirty pages in the background, if asked to
+		int watermark = Config.getInteger("VMKernel.cleanWatermark", 0);
+		if (watermark > 0) {
+			cleaner = new PageCleaner(watermark);
+			new KThread(cleaner).setName("page cleaner").fork();
+		}
 	}
 
 	/**
@@ -51,12 +64,21 @@ public class VMKernel extends UserKernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel, printing the paging counters if
+	 * <tt>VMKernel.stats</tt> is set. Never returns.
 	 */
 	public void terminate() {
+		if (printStats) {
+			replacementPolicy.print();
+			if (cleaner != null)
+				cleaner.print();
+			swap.print();
+			VMProcess.printReadAhead();
+		}
+		if (ContentionProfiler.enabled())
+			lock3.print();
 		// close and remove the swapFile
-		swp_file.close();
-		ThreadedKernel.fileSystem.remove("Global_Swap");
+		swap.close();
 		super.terminate();
 	}
 
@@ -82,6 +104,8 @@ public class VMKernel extends UserKernel {
 */		VMProcess process;
 		TranslationEntry pageEntry;
 		boolean pinned;
+		// the frame's own physical page number
+		int ppn;
 		
 		public PageFrame() {
 			process = null;
@@ -95,24 +119,45 @@ public class VMKernel extends UserKernel {
 			pinned = cur_pinned;
 		}
 
+		/* pin or unpin the frame, telling the replacement policy, which may
+		 * count the frames it can evict
+		 */
+		void setPinned(boolean value) {
+			if(pinned != value) {
+				pinned = value;
+				replacementPolicy.pinChanged(ppn, value);
+			}
+		}
+
+		/* identifies the page in this frame across evictions, for policies
+		 * that remember pages they have evicted
+		 */
+		long pageKey() {
+			return ((long) process.pid << 32) | (pageEntry.vpn & 0xFFFFFFFFL);
+		}
 
 	}
 
 	// need a pinCount to keep track of the total number of pages pinned
 	public static int pinCount = 0;
-	public static int victimTrack = 0;
-	public static Lock lock3;
+	public static AdaptiveLock lock3;
 	public static Condition cond;
+	// picks the page to evict when there are no free physical pages
+	public static PageReplacementPolicy replacementPolicy;
+	// writes dirty pages to swap ahead of eviction, or null if there is none
+	public static PageCleaner cleaner = null;
 	// this static PageFrame is to keep track of each physical page and
 	// its relevant process, whether it is pinned and the TranslationEntry
 	protected static PageFrame[] evict_list;
-	// using a single, global swap file across all processes.
-	protected static OpenFile swp_file;
-	// used to count the number of assigned swap number
-	public static int swap_count = 0;
-	// As with physical memory in project 2, a global free list works well. You can assume that the swap 
-	// file can grow arbitrarily, and that there should not be any read/write errors. Assert if there are.
-	public static LinkedList<Integer> free_swp_pages;
+	// using a single, global swap file across all processes, which keeps
+	// track of its free slots
+	protected static SwapSpace swap;
+	// the most pages written to swap with one I/O
+	public static int swapCluster;
+	// the most pages read ahead at one page fault
+	public static int maxReadAhead;
+	// whether to print the paging counters on termination
+	public static boolean printStats;
 
 
 }
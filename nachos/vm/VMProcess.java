@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.Arrays;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -94,7 +96,7 @@ public class VMProcess extends UserProcess {
 
 		// set the pinned bit of the pageFrame to restrict access to the entry
 		// and increment the number of pinned counts
-		VMKernel.evict_list[cur_ppn].pinned = true;
+		VMKernel.evict_list[cur_ppn].setPinned(true);
 		VMKernel.pinCount += 1;
 
 		int amount = Math.min(length, pageSize-cur_vpn_offset);
@@ -102,7 +104,7 @@ public class VMProcess extends UserProcess {
 
 		// after the data successfully transferred to the array, we unpin the physical
 		// page, update total number of pinned pages, and wake if valid
-		VMKernel.evict_list[cur_ppn].pinned = false;
+		VMKernel.evict_list[cur_ppn].setPinned(false);
 		VMKernel.pinCount -= 1;
 		if(VMKernel.pinCount < num_phyPages) {
 			VMKernel.cond.wake();
@@ -148,10 +150,10 @@ public class VMProcess extends UserProcess {
 				return bytes_read;
 			}
 			amount = Math.min(length, pageSize);
-			VMKernel.evict_list[cur_ppn].pinned = true;
+			VMKernel.evict_list[cur_ppn].setPinned(true);
 			VMKernel.pinCount += 1;
 			System.arraycopy(memory, cur_ppn_addr, data, offset, length);
-			VMKernel.evict_list[cur_ppn].pinned = false;
+			VMKernel.evict_list[cur_ppn].setPinned(false);
 			VMKernel.pinCount -= 1;
 			if(VMKernel.pinCount < num_phyPages) {
 				VMKernel.cond.wake();
@@ -232,7 +234,7 @@ public class VMProcess extends UserProcess {
 		int amount = Math.min(length, pageSize-cur_vpn_offset);
 		// set the pinned bit of the pageFrame to restrict access to the entry
 		// and increment the number of pinned counts
-		VMKernel.evict_list[cur_ppn].pinned = true;
+		VMKernel.evict_list[cur_ppn].setPinned(true);
 		VMKernel.pinCount += 1;
 		// If the page is modified, set dirty bit to true.
 		// by checking the amount to write is greater than 0
@@ -240,7 +242,7 @@ public class VMProcess extends UserProcess {
 		System.arraycopy(data, offset, memory, cur_ppn_addr, amount);
 		// after the data successfully transferred to the array, we unpin the physical
 		// page, update total number of pinned pages, and wake if valid
-		VMKernel.evict_list[cur_ppn].pinned = false;
+		VMKernel.evict_list[cur_ppn].setPinned(false);
 		VMKernel.pinCount -= 1;
 		if(VMKernel.pinCount < num_phyPages) {
 			VMKernel.cond.wake();
@@ -288,12 +290,12 @@ public class VMProcess extends UserProcess {
 			}
 			amount = Math.min(length, pageSize);
 			// pin the physical page to restrict evict untimely
-			VMKernel.evict_list[cur_ppn].pinned = true;
+			VMKernel.evict_list[cur_ppn].setPinned(true);
 			VMKernel.pinCount += 1;
 			if(amount >0)	pageTable[cur_vpn].dirty = true;
 			System.arraycopy(data, offset, memory, cur_ppn_addr, length);
 			// unpin the p p now allow eviction
-			VMKernel.evict_list[cur_ppn].pinned = false;
+			VMKernel.evict_list[cur_ppn].setPinned(false);
 			VMKernel.pinCount -= 1;
 			if(VMKernel.pinCount < num_phyPages) {
 				VMKernel.cond.wake();
@@ -314,13 +316,14 @@ public class VMProcess extends UserProcess {
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
+	 * demand-paged. Every page starts out invalid, and a table records where
+	 * each one comes from when it is first faulted in: a page of a COFF
+	 * section, or zero-fill for the stack and argument pages.
 	 * 
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
 		UserKernel.lock1.acquire();
-		int numPhysPages = Machine.processor().getNumPhysPages();
 
 		// create a pageTable of the needed number of page entries
 		// set every entry to invalid
@@ -328,16 +331,53 @@ public class VMProcess extends UserProcess {
 		for (int i = 0; i < numPages; i++) {
 			pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
 		}
+
+		// every page not in a COFF section is zero-filled
+		pageSource = new byte[numPages];
+		pageSection = new CoffSection[numPages];
+		pageIndex = new int[numPages];
+		readAhead = new boolean[numPages];
+		for (int i = 0; i < numPages; i++) {
+			pageSource[i] = sourceZero;
+			pageIndex[i] = -1;
+		}
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+					+ " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+
+				pageSource[vpn] = sourceCoff;
+				pageSection[vpn] = section;
+				pageIndex[vpn] = i;
+			}
+		}
+
 		UserKernel.lock1.release();
 		return true;
 		//return super.loadSections();
 	}
 
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Release any resources allocated by <tt>loadSections()</tt>, including the
+	 * swap slots still holding this process's pages.
 	 */
 	protected void unloadSections() {
 		super.unloadSections();
+
+		if (pageSource == null)
+			return;
+
+		UserKernel.lock1.acquire();
+		settleReadAhead(true);
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			releaseSwapSlot(vpn);
+		}
+		UserKernel.lock1.release();
 	}
 
 	/**
@@ -364,60 +404,29 @@ public class VMProcess extends UserProcess {
 	 * to evict a physical page when no free physical pages available
 	 */
 	private void evict() {
-		byte[] memory = Machine.processor().getMemory();
-		int ind_evict = -1;
 		int num_phyPages = Machine.processor().getNumPhysPages();
-		// in the while loop until finding a valid page to evict
-		while(true) {		
-		//		for(int victimInd = 0; victimInd<Machine.processor().getNumPhysPages(); victimInd++) {
-
-			//when there are no free pages available and all the pages
-			//are pinned meaning, we have to swap out a page but we do
-			//not have any eligible pages. So the request for a physical
-			//page has to be delayed until either a physical page becomes
-			//free or a page is unpinned.		
-			if(VMKernel.pinCount >= num_phyPages) {
-				VMKernel.cond.sleep();        //code will continue once cv1 is waken
-			}
-			if(VMKernel.evict_list[VMKernel.victimTrack].pinned){
-				continue;
-			}else{
-				while (VMKernel.evict_list[VMKernel.victimTrack].pageEntry.used) {
-					VMKernel.evict_list[VMKernel.victimTrack].pageEntry.used = false;
-					VMKernel.victimTrack = (VMKernel.victimTrack+1)%num_phyPages;
-				}
-				break;
-			}
+
+		//when there are no free pages available and all the pages
+		//are pinned meaning, we have to swap out a page but we do
+		//not have any eligible pages. So the request for a physical
+		//page has to be delayed until either a physical page becomes
+		//free or a page is unpinned.		
+		if(VMKernel.pinCount >= num_phyPages) {
+			VMKernel.cond.sleep();        //code will continue once cv1 is waken
 		}
 
-		// store the victim index and increment the victimTrack variable to
-		// meet the requirement of the clock algorithm
-		ind_evict = VMKernel.victimTrack;
+		// let the replacement policy choose the victim
+		int ind_evict = VMKernel.replacementPolicy.findVictim();
 		PageFrame evict_frame = VMKernel.evict_list[ind_evict];
-		VMKernel.victimTrack = (VMKernel.victimTrack+1)%num_phyPages;
+
+		// Invalidate PTE and TLB entry of the victim page first, so that it
+		// cannot change while it is being written out
+		evict_frame.pageEntry.valid = false;
 
 		//If the page is dirty, though, the kernel must save the page 
 		//contents in the swap file on disk.
-		// how to achieve this ??
-		// SWAP OUT a page if the page to be evicted is dirty by Openfile.write()
 		if(evict_frame.pageEntry.dirty){
-
-			int swap_ind = -1;
-			// discussion says dont swap if section is readonly
-			// cant be dirty if is readonly
-			// if the ids aren't enough
-			if(VMKernel.free_swp_pages.isEmpty()){
-				swap_ind = VMKernel.swap_count++;
-			}
-			
-			// if not empty, remove
-			else{
-				swap_ind = VMKernel.free_swp_pages.removeLast();
-			}
-			// swap out by writing
-			VMKernel.evict_list[ind_evict].pageEntry.vpn = swap_ind;
-			VMKernel.swp_file.write(swap_ind*pageSize, memory,
-					Processor.makeAddress(VMKernel.evict_list[ind_evict].pageEntry.ppn, 0), pageSize);
+			evict_frame.process.swapOut(evict_frame.pageEntry.vpn);
 		}
 
 		// otherwise the page can be used directly
@@ -426,138 +435,411 @@ public class VMProcess extends UserProcess {
 		UserKernel.free_physical_pages.add(evict_ppn);
 		// remove the page from the process at the same time
 		evict_frame.process.loaded_pages.remove(evict_ppn);
-		// Invalidate PTE and TLB entry of the victim page
-		evict_frame.pageEntry.valid = false;
 
 	}
 
+	/**
+	 * Write a page to swap and mark it clean, along with the dirty pages next
+	 * to it that are in memory, up to <tt>VMKernel.swapCluster</tt> pages in
+	 * all. The pages are written with one I/O, to a run of adjacent slots, and
+	 * stay in memory; if one is evicted before it is written to again, it is
+	 * simply dropped. A page written alone keeps the slot it already has.
+	 * Called with <tt>UserKernel.lock1</tt> held.
+	 * 
+	 * @param vpn the virtual page to write.
+	 */
+	void swapOut(int vpn) {
+		byte[] memory = Machine.processor().getMemory();
+
+		// gather the neighbours, after the page first since programs tend to
+		// walk upwards through memory
+		int first = vpn, last = vpn;
+		while(last-first+1 < VMKernel.swapCluster && canCluster(last+1)) {
+			last++;
+		}
+		while(last-first+1 < VMKernel.swapCluster && canCluster(first-1)) {
+			first--;
+		}
+		int count = last-first+1;
+
+		// discussion says dont swap if section is readonly
+		// cant be dirty if is readonly
+		int swap_ind;
+		if(count == 1) {
+			swap_ind = assignSwapSlot(vpn);
+		}
+		else {
+			for(int i = first; i <= last; i++) {
+				releaseSwapSlot(i);
+			}
+			swap_ind = VMKernel.swap.allocateRun(count);
+			for(int i = first; i <= last; i++) {
+				pageSource[i] = sourceSwap;
+				pageIndex[i] = swap_ind + (i-first);
+			}
+		}
+
+		// copy the pages out before writing, since the ones still valid may
+		// be written to again meanwhile; that makes them dirty again
+		byte[] buffer = new byte[count*pageSize];
+		for(int i = first; i <= last; i++) {
+			System.arraycopy(memory, Processor.makeAddress(pageTable[i].ppn, 0),
+					buffer, (i-first)*pageSize, pageSize);
+			pageTable[i].dirty = false;
+		}
+		VMKernel.swap.write(swap_ind, buffer, 0, count);
+	}
+
+	/**
+	 * Test whether a page can be written out along with its neighbour: it is
+	 * in memory, dirty, and not pinned.
+	 */
+	private boolean canCluster(int vpn) {
+		if(vpn < 0 || vpn >= numPages) {
+			return false;
+		}
+
+		TranslationEntry entry = pageTable[vpn];
+		return entry.valid && entry.dirty && !entry.readOnly
+				&& !VMKernel.evict_list[entry.ppn].pinned;
+	}
+
+	/**
+	 * Return the swap slot of a page, giving it a free one if it has none or
+	 * if the page cleaner is still writing an older copy to its slot.
+	 * 
+	 * @param vpn the virtual page.
+	 * @return the page's swap slot.
+	 */
+	int assignSwapSlot(int vpn) {
+		if(VMKernel.cleaner != null && VMKernel.cleaner.isWriting(this, vpn)) {
+			releaseSwapSlot(vpn);
+		}
+
+		int swap_ind = pageIndex[vpn];
+		if(pageSource[vpn] != sourceSwap || swap_ind < 0) {
+			swap_ind = VMKernel.swap.allocate();
+		}
+
+		// remember where the page goes
+		pageSource[vpn] = sourceSwap;
+		pageIndex[vpn] = swap_ind;
+		return swap_ind;
+	}
+
+	/**
+	 * Test whether a page still has a particular swap slot.
+	 */
+	boolean hasSwapSlot(int vpn, int swap_ind) {
+		return pageSource[vpn] == sourceSwap && pageIndex[vpn] == swap_ind;
+	}
+
+	/**
+	 * Give up a page's swap slot, if it has one. The slot is freed, unless the
+	 * page cleaner is writing to it, in which case the cleaner frees it when it
+	 * is done.
+	 */
+	private void releaseSwapSlot(int vpn) {
+		if(pageSource[vpn] != sourceSwap || pageIndex[vpn] < 0) {
+			return;
+		}
+
+		if(VMKernel.cleaner == null || !VMKernel.cleaner.isWriting(this, vpn)) {
+			VMKernel.swap.free(pageIndex[vpn]);
+		}
+		pageIndex[vpn] = -1;
+	}
+
 
 
 	/* This is the helper method that handles the pagefault when it happens
-	 * Prepare the demanded page when needed.	
+	 * Prepare the demanded page when needed, from wherever the table built by
+	 * loadSections() says it is, along with the pages after it that are worth
+	 * reading ahead.
 	 */
 	private void handlePgFault(int demandAddr) {
 		int demandVpn = Processor.pageFromAddress(demandAddr);
 
-		//////////////////////////////////////// can the faulting vpn be greater than numPages? 
 		if(demandVpn >= numPages) { 
 			return; 
 		}
 		UserKernel.lock1.acquire();
-		int num_phyPages = Machine.processor().getNumPhysPages();
+
+		int window = readAheadWindow(demandVpn);
+
+		// read ahead only into free frames: evicting a page that is in use
+		// for one that may never be used costs more than reading ahead saves,
+		// so if memory is short, close the window
+		int free = UserKernel.free_physical_pages.size()-1;
+		if(window > free) {
+			window = Math.max(free, 0);
+			readAheadWindow = 0;
+		}
+
+		// the last page to bring in: the demanded one, and then as much of
+		// the read-ahead window as holds COFF or swapped pages
+		int last = demandVpn;
+		for (int vpn = demandVpn+1; vpn <= demandVpn+window && vpn < numPages; vpn++) {
+			if(pageSource[vpn] == sourceZero) {
+				break;
+			}
+			last = vpn;
+		}
+		readAheadEnd = last+1;
+		lastFault = demandVpn;
+
+		// the frames filled in stay pinned until the end, so that reading
+		// ahead cannot evict the page that was faulted on
+		int[] loaded = new int[last-demandVpn+1];
+		int numLoaded = 0;
+		for (int vpn = demandVpn; vpn <= last; vpn++) {
+			if(pageTable[vpn].valid) {
+				continue;
+			}
+
+			// read pages in adjacent swap slots with one I/O, unless the
+			// cleaner has the first one
+			int count = 1;
+			if(pageSource[vpn] == sourceSwap && (VMKernel.cleaner == null
+					|| !VMKernel.cleaner.isWriting(this, vpn))) {
+				while(vpn+count <= last && isNextSwapPage(vpn+count-1, vpn+count)) {
+					count++;
+				}
+			}
+
+			loadPages(vpn, count, vpn == demandVpn);
+			for (int i = 0; i < count; i++) {
+				loaded[numLoaded++] = pageTable[vpn+i].ppn;
+			}
+			vpn += count-1;
+		}
+		for (int i = 0; i < numLoaded; i++) {
+			VMKernel.evict_list[loaded[i]].setPinned(false);
+		}
+
+		if(VMKernel.cleaner != null) {
+			VMKernel.cleaner.pageFaulted();
+		}
+		UserKernel.lock1.release();
+	}
+
+	/**
+	 * Test whether a page can be read with the one before it: it is not in
+	 * memory and is in the next swap slot.
+	 */
+	private boolean isNextSwapPage(int prev, int vpn) {
+		return !pageTable[vpn].valid && pageSource[vpn] == sourceSwap
+				&& pageIndex[vpn] == pageIndex[prev]+1
+				&& (VMKernel.cleaner == null || !VMKernel.cleaner.isWriting(this, vpn));
+	}
+
+	/**
+	 * Bring pages into memory, leaving their frames pinned. More than one page
+	 * must be in adjacent swap slots, and is read with one I/O.
+	 * 
+	 * @param first the first page to load.
+	 * @param count the number of pages to load.
+	 * @param demand <tt>true</tt> if the first page was faulted on, rather
+	 * than read ahead.
+	 */
+	private void loadPages(int first, int count, boolean demand) {
 		byte[] memory = Machine.processor().getMemory();
-		int section_vpn = -1;
-		int cur_vpn = -1;
-//		int num_assigned = -1;         /////////////////////////////////////// remove?
-//		boolean page_found = false;
-		// load sections
-		for (int s = 0; s < coff.getNumSections(); s++) {
-			CoffSection section = coff.getSection(s);
 
-			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-					+ " section (" + section.getLength() + " pages)");
+		// get a frame for each page, pinning them so that making room for
+		// the next one cannot take them back
+		int[] ppns = new int[count];
+		for (int i = 0; i < count; i++) {
+			// if there is no physical page left to be assigned, make one
+			if(UserKernel.free_physical_pages.isEmpty()) {
+				this.evict();
+			}
+			ppns[i] = UserKernel.free_physical_pages.removeLast();
+			// add the page to the loaded list
+			loaded_pages.add(ppns[i]);
+			VMKernel.evict_list[ppns[i]].setPinned(true);
+		}
 
-			for (int i = 0; i < section.getLength(); i++) {
-				cur_vpn = section.getFirstVPN() + i;
-				section_vpn = cur_vpn;
-				// assign the page frame number of the physical page
-				//System.out.println("the size of physical pages is:" + UserKernel.free_physical_pages.size());
-				
-				// if a match of vpn is found, we know what to load in
-				if (demandVpn == cur_vpn) {			
-					// if there is no physical page left to be assigned
-					if(UserKernel.free_physical_pages.isEmpty()) {
-						//////////////////////////////// cannot assign if no free physical page
-						this.evict();
-					}
-					// we can thus always assign a physical page
-					int ppn = UserKernel.free_physical_pages.removeLast();
-					// add the page to the loaded list
-					loaded_pages.add(ppn);
-
-					// SWAP IN a page if the page to be accessed is dirty, indicating
-					// it has been swapped out before
-					if(pageTable[demandVpn].dirty) {
-
-						// ??????????????????????????????????????????????
-
-						VMKernel.swp_file.read(pageSize * pageTable[cur_vpn].vpn, memory,
-							 Processor.makeAddress(ppn, 0), pageSize);
-
-						VMKernel.free_swp_pages.add(pageTable[cur_vpn].vpn);	 
-						pageTable[cur_vpn] = new TranslationEntry(cur_vpn, ppn, true, false, true, true);
-
-						//pageTable[cur_vpn] = new TranslationEntry(cur_vpn, ppn, true, section.isReadOnly(), true, true);
-					}
-
-					// otherwise the accessed page is clean, same as before
-					else {
-						// Load a page from this segment of the current pagetable into physical memory.
-						section.loadPage(i, ppn);
-						// if this coff section is read-only create the entry with
-						// setting the readOnly bit to be true
-						// also set the used bit to true 
-						pageTable[cur_vpn] = new TranslationEntry(cur_vpn, ppn, true, section.isReadOnly(), true, false);
-					}
-					// set for the evict_list, for each ppn set the same entry as for the pageTable
-					VMKernel.evict_list[ppn].pageEntry = pageTable[cur_vpn];
-					VMKernel.evict_list[ppn].process = this;
-					// return after prepared the demand page
-					UserKernel.lock1.release();
-					return;	
-				}		
-				// otherwise, look for the match in code/data section of COFF
-				else continue;
+		if(count > 1) {
+			byte[] buffer = new byte[count*pageSize];
+			VMKernel.swap.read(pageIndex[first], buffer, 0, count);
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(buffer, i*pageSize, memory,
+						Processor.makeAddress(ppns[i], 0), pageSize);
 			}
 		}
 
-		// find the match page if not in COFF's code/data section
-		for (int k = cur_vpn+1; k<numPages; k++) {
-			section_vpn++;
-			if(section_vpn == demandVpn){
-				if(UserKernel.free_physical_pages.isEmpty()) {
-					this.evict();
+		for (int i = 0; i < count; i++) {
+			int vpn = first+i;
+			int ppn = ppns[i];
+			// a page read ahead is not used until the program touches it
+			boolean used = demand && i == 0;
+
+			switch (pageSource[vpn]) {
+			// SWAP IN a page; it keeps its slot, so it is clean until it is
+			// written to again
+			case sourceSwap:
+				// if the cleaner is still writing the page, its slot is not
+				// up to date, but the cleaner's copy is
+				if(count == 1 && (VMKernel.cleaner == null
+						|| !VMKernel.cleaner.copyIfWriting(this, vpn, ppn))) {
+					VMKernel.swap.read(pageIndex[vpn], memory,
+							Processor.makeAddress(ppn, 0), 1);
 				}
-				// after gaining the free physical page, or there have been enough pp
-				if(!UserKernel.free_physical_pages.isEmpty()) {
-				
-					int ppn = UserKernel.free_physical_pages.removeLast();
-					// add the page to the loaded list
-					loaded_pages.add(ppn);
-					// SWAP IN a page if the page to be accessed is dirty, indicating
-					// it has been swapped out before
-					if(pageTable[demandVpn].dirty) {
-
-//						VMKernel.swp_file.read();
-//						VMKernel.free_swp_pages.add()
-
-						VMKernel.swp_file.read(pageSize * pageTable[section_vpn].vpn, memory,
-							 Processor.makeAddress(ppn, 0), pageSize);
-
-						VMKernel.free_swp_pages.add(pageTable[section_vpn].vpn);	 
-						pageTable[section_vpn] = new TranslationEntry(section_vpn, ppn, true, false, true, true);
-					}
-
-					else {
-						//System.out.println("the size of physical pages is after :" + UserKernel.free_physical_pages.size());
-						// create a zero_filled byte array
-						byte[] zero_filler = new byte[pageSize];
-						for (byte c: zero_filler)
-							c = 0;
-						// zero fill the physical page ???
-						System.arraycopy(zero_filler, 0, memory, Processor.makeAddress(ppn, 0), pageSize);	
-						// also set the TLBeNTRY
-						pageTable[section_vpn] = new TranslationEntry(section_vpn, ppn, true, false, true, false);
-					}
-					VMKernel.evict_list[ppn].pageEntry = pageTable[section_vpn];
-					VMKernel.evict_list[ppn].process = this;
-					UserKernel.lock1.release();
-					return;
+				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, used, false);
+				break;
+
+			// Load a page from its COFF section into physical memory; a read-only
+			// section's pages are read-only
+			case sourceCoff:
+				CoffSection section = pageSection[vpn];
+				section.loadPage(pageIndex[vpn], ppn);
+				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), used, false);
+				break;
+
+			// stack and argument pages start out zero-filled
+			default:
+				Arrays.fill(memory, Processor.makeAddress(ppn, 0),
+						Processor.makeAddress(ppn, 0) + pageSize, (byte) 0);
+				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, used, false);
+				break;
+			}
+
+			readAhead[vpn] = false;
+			if(!used) {
+				// watch the page until it is used or evicted
+				if(numPending == pending.length) {
+					settleReadAhead(true);
 				}
+				readAhead[vpn] = true;
+				pending[numPending++] = vpn;
+				numReadAhead++;
 			}
+
+			// set for the evict_list, for each ppn set the same entry as for the pageTable
+			VMKernel.evict_list[ppn].pageEntry = pageTable[vpn];
+			VMKernel.evict_list[ppn].process = this;
+			VMKernel.replacementPolicy.pageLoaded(ppn, used);
 		}
 	}
 
+	/**
+	 * Return how many pages after a faulting page to read ahead, adapting the
+	 * window to how well the last read-ahead went. A fault is sequential if it
+	 * is on the page after the last fault, or just past the pages last read
+	 * ahead; each sequential fault doubles the window, up to
+	 * <tt>VMKernel.maxReadAhead</tt> pages, and any other fault closes it. If
+	 * some of the pages read ahead were evicted before the program touched
+	 * them, the window is halved instead. The window is also closed when there
+	 * are not enough free frames to read it ahead, see
+	 * <tt>handlePgFault()</tt>.
+	 * 
+	 * @param vpn the page being faulted on.
+	 * @return the number of pages to read ahead.
+	 */
+	private int readAheadWindow(int vpn) {
+		if(VMKernel.maxReadAhead == 0) {
+			return 0;
+		}
+
+		int wasted = settleReadAhead(false);
+
+		boolean sequential = vpn == lastFault+1 || vpn == readAheadEnd;
+
+		if(wasted > 0) {
+			readAheadWindow /= 2;
+		}
+		else if(sequential) {
+			readAheadWindow = Math.min(Math.max(2*readAheadWindow, 1), VMKernel.maxReadAhead);
+		}
+		else {
+			readAheadWindow = 0;
+		}
+
+		// the faulting page may have been read ahead, and evicted too soon
+		readAhead[vpn] = false;
+
+		return readAheadWindow;
+	}
+
+	/**
+	 * See which of the pages read ahead have been used or evicted since the
+	 * last look, and stop watching them.
+	 * 
+	 * @param all <tt>true</tt> to stop watching every page, counting those
+	 * still unused as wasted.
+	 * @return the number of pages evicted without being used.
+	 */
+	private int settleReadAhead(boolean all) {
+		int wasted = 0;
+		int kept = 0;
+
+		for (int i = 0; i < numPending; i++) {
+			int vpn = pending[i];
+			if(!readAhead[vpn]) {
+				continue;
+			}
+
+			if(pageTable[vpn].valid && pageTable[vpn].used) {
+				numReadAheadUsed++;
+			}
+			else if(!pageTable[vpn].valid || all) {
+				wasted++;
+			}
+			else {
+				pending[kept++] = vpn;
+				continue;
+			}
+			readAhead[vpn] = false;
+		}
+
+		numPending = kept;
+		numReadAheadWasted += wasted;
+		return wasted;
+	}
+
+	/**
+	 * Print how useful reading ahead has been.
+	 */
+	static void printReadAhead() {
+		if(VMKernel.maxReadAhead > 0) {
+			System.out.println("Read-ahead: pages " + numReadAhead + ", used "
+					+ numReadAheadUsed + ", unused " + numReadAheadWasted);
+		}
+	}
+
+
+	/** Where each page comes from when it is faulted in. */
+	private byte[] pageSource;
+
+	/** The COFF section of each COFF page. */
+	private CoffSection[] pageSection;
+
+	/**
+	 * For a COFF page, its page number within its section; for a page with a
+	 * copy in swap, its swap slot; otherwise -1.
+	 */
+	private int[] pageIndex;
+
+	/** Whether each page was read ahead and not yet seen to be used. */
+	private boolean[] readAhead;
+
+	/** The pages read ahead that are being watched. */
+	private int[] pending = new int[32];
+
+	private int numPending = 0;
+
+	/** One past the pages read ahead at the last fault. */
+	private int readAheadEnd = 0;
+
+	/** The page last faulted on. */
+	private int lastFault = -1;
+
+	/** The number of pages the next sequential fault will double. */
+	private int readAheadWindow = 0;
+
+	private static int numReadAhead = 0, numReadAheadUsed = 0, numReadAheadWasted = 0;
+
+	private static final byte sourceCoff = 0, sourceZero = 1, sourceSwap = 2;
 
 	private static final int pageSize = Processor.pageSize;
 
@@ -0,0 +1,118 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.VMKernel.PageFrame;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps over the
+ * frames and clears <tt>used</tt> bits, but it also remembers when each page
+ * was last seen in use, and only evicts pages that have fallen out of their
+ * process's working set: those unused for more than
+ * <tt>WSClockPolicy.tau</tt> ticks.
+ *
+ * <p>
+ * It prefers clean pages, which can be dropped without a write. When the hand
+ * passes an old dirty page, it writes the page to swap, up to
+ * <tt>WSClockPolicy.maxWrites</tt> pages per sweep, and leaves it in memory;
+ * the page is clean the next time the hand comes around. If a whole sweep
+ * finds no old clean page, the first clean page it passed is evicted, or
+ * failing that the first dirty one.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+		lastUse = new long[numFrames];
+
+		tau = Config.getInteger("WSClockPolicy.tau", 10 * Stats.TimerTicks);
+		maxWrites = Config.getInteger("WSClockPolicy.maxWrites", 4);
+	}
+
+	public void pageLoaded(int ppn, boolean demand) {
+		if (demand)
+			faults++;
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public int findVictim() {
+		long now = Machine.timer().getTime();
+		int writes = 0;
+		int firstClean = -1, firstDirty = -1;
+
+		for (int step = 0;; step++) {
+			// after a full sweep, settle for the best page passed over, unless
+			// it was pinned while a write-back was in progress
+			if (step > 0 && step % numFrames == 0) {
+				int ppn = (firstClean >= 0) ? firstClean : firstDirty;
+				if (ppn >= 0 && !VMKernel.evict_list[ppn].pinned) {
+					hand = (ppn + 1) % numFrames;
+					return victim(ppn);
+				}
+				firstClean = firstDirty = -1;
+			}
+
+			PageFrame frame = VMKernel.evict_list[hand];
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (frame.pinned)
+				continue;
+
+			if (frame.pageEntry.used) {
+				frame.pageEntry.used = false;
+				lastUse[ppn] = now;
+				hits++;
+				continue;
+			}
+
+			boolean old = now - lastUse[ppn] > tau;
+
+			if (frame.pageEntry.dirty && old && writes < maxWrites) {
+				frame.process.swapOut(frame.pageEntry.vpn);
+				writes++;
+				cleaned++;
+			}
+
+			if (!frame.pageEntry.dirty) {
+				if (old)
+					return victim(ppn);
+				if (firstClean < 0)
+					firstClean = ppn;
+			}
+			else if (firstDirty < 0) {
+				firstDirty = ppn;
+			}
+		}
+	}
+
+	private int victim(int ppn) {
+		evictions++;
+		if (VMKernel.evict_list[ppn].pageEntry.dirty)
+			dirtyEvictions++;
+
+		return ppn;
+	}
+
+	public void pinChanged(int ppn, boolean pinned) {
+	}
+
+	public void print() {
+		System.out.println("Replacement: WSClock, faults " + faults + ", hits "
+				+ hits + ", evictions " + evictions + " (" + dirtyEvictions
+				+ " dirty), pages cleaned " + cleaned);
+	}
+
+	private int numFrames;
+
+	private int hand = 0;
+
+	/** When each frame's page was last seen in use. */
+	private long[] lastUse;
+
+	private int tau, maxWrites;
+
+	private int faults = 0, hits = 0, evictions = 0, dirtyEvictions = 0,
+			cleaned = 0;
+}